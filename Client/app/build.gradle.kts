@@ -38,7 +38,6 @@ android {
     }
     buildFeatures {
         compose = true
-        aidl = true
     }
     composeOptions {
         kotlinCompilerExtensionVersion = "1.5.1"
@@ -52,6 +51,7 @@ android {
 
 dependencies {
 
+    implementation(project(":contract"))
     implementation(libs.androidx.core.ktx)
     implementation(libs.androidx.lifecycle.runtime.ktx)
     implementation(libs.androidx.activity.compose)
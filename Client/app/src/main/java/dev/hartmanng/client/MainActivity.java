@@ -4,9 +4,7 @@
 
 package dev.hartmanng.client;
 
-import android.app.PendingIntent;
-import android.content.Context;
-import android.content.Intent;
+import android.os.Binder;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.SurfaceHolder;
@@ -24,14 +22,6 @@ import androidx.core.view.WindowInsetsCompat;
 public class MainActivity extends AppCompatActivity {
     private static final String TAG = "Client.MainActivity";
 
-    public static final String ACTION_SERVER_CALLBACK = "callback";
-
-    // I'll be honest - this is kind of a hack. I don't like the global state. But the callback
-    // from the server causes a new MainActivity to start, so this is the easiest way to get it the
-    // data it needs. Ideally we would be using a better API involving maybe another aidl or just
-    // a Messenger?
-    public static SimpleCallback sServerCallback = null;
-
     private ServerCameraServiceManager mServerCameraServiceManager = null;
     private Button mBindServiceButton;
     private Button mRequestPermissionsButton;
@@ -40,6 +30,8 @@ public class MainActivity extends AppCompatActivity {
     private Button mUnbindServiceButton;
     private VideoView mVideoView;
     private boolean mSurfaceIsValid = false;
+    // Identifies the current Surface to the Server. A new one is made for every Surface.
+    private Binder mSurfaceToken = null;
 
     private OnClickListener mOnBindServiceButtonClicked = v -> {
         Log.i(TAG, "mOnBindServiceButtonClicked()");
@@ -67,7 +59,8 @@ public class MainActivity extends AppCompatActivity {
             return;
         }
 
-        mServerCameraServiceManager.delegateCameraToSurface(mVideoView.getHolder().getSurface());
+        mServerCameraServiceManager.delegateCameraToSurface(mSurfaceToken,
+                mVideoView.getHolder().getSurface());
     };
 
     private OnClickListener mOnUnbindServiceButtonClicked = v -> {
@@ -77,46 +70,12 @@ public class MainActivity extends AppCompatActivity {
         updateButtons();
     };
 
-    public interface SimpleCallback {
-        void run();
-    }
-
-    // Create a PendingIntent used for the Server app to send a callback to the client once the
-    // first permission prompt is finished.
-    public static PendingIntent getPendingIntent(Context applicationContext) {
-        Intent intent = new Intent(applicationContext, MainActivity.class);
-        intent.setAction(ACTION_SERVER_CALLBACK);
-        intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-
-        return PendingIntent.getActivity(applicationContext, 0 /* requestCode */, intent,
-                PendingIntent.FLAG_IMMUTABLE);
-    }
-
-    public static void setServerCallback(SimpleCallback callback) {
-        sServerCallback = callback;
-    }
-
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
         Log.i(TAG, "onCreate()");
 
-        // If the Intent that created this activity is a callback from the Server app, then just run
-        // the registered callback function and close the activity.
-        if (getIntent().getAction().equals(ACTION_SERVER_CALLBACK)) {
-            Log.i(TAG, "got server callback");
-            if (sServerCallback != null) {
-                SimpleCallback callback = sServerCallback;
-                sServerCallback = null;
-                callback.run();
-            } else {
-                Log.i(TAG, "sServerCallback == null");
-            }
-            finish();
-            return;
-        }
-
         // Layout, style, theme, etc.
         EdgeToEdge.enable(this);
         setContentView(R.layout.activity_main);
@@ -154,6 +113,7 @@ public class MainActivity extends AppCompatActivity {
                 Log.i(TAG, "SurfaceHolder.Callback.surfaceCreated()");
 
                 mSurfaceIsValid = true;
+                mSurfaceToken = new Binder();
             }
 
             @Override
@@ -167,6 +127,10 @@ public class MainActivity extends AppCompatActivity {
                 Log.i(TAG, "SurfaceHolder.Callback.surfaceDestroyed()");
 
                 mSurfaceIsValid = false;
+                if (mServerCameraServiceManager != null) {
+                    mServerCameraServiceManager.undelegateCameraFromSurface(mSurfaceToken);
+                }
+                mSurfaceToken = null;
             }
         });
     }
@@ -19,14 +19,16 @@ import android.util.Log;
 import android.view.Surface;
 
 import dev.hartmanng.server.ICameraService;
+import dev.hartmanng.server.IPermissionResultCallback;
 
 public class ServerCameraServiceManager {
     private static final String TAG = "Client.ServerCameraServiceManager";
 
-    // Must be the same as the one in Server's PermissionRequestActivity.java.
-    private static final String SERVER_EXTRA_CALLBACK = "callback";
-
     private ICameraService mService = null;
+    // What the bound Server supports, as negotiated in onServiceConnected(). A Server that
+    // predates versioning reports 0 for both.
+    private int mServerVersion = 0;
+    private int mServerCapabilities = 0;
     private final ContextWrapper mContextWrapper;
     private final ServiceConnection mConnection;
 
@@ -53,6 +55,7 @@ public class ServerCameraServiceManager {
                 Log.i(TAG, "onServiceConnected(): " + className);
 
                 mService = ICameraService.Stub.asInterface(service);
+                negotiateCapabilities();
                 onServiceConnectedCallback.run();
             }
 
@@ -61,6 +64,8 @@ public class ServerCameraServiceManager {
                 Log.i(TAG, "onServiceDisconnected(): " + componentName);
 
                 mService = null;
+                mServerVersion = 0;
+                mServerCapabilities = 0;
                 onServiceDisconnectedCallback.run();
             }
         };
@@ -74,26 +79,28 @@ public class ServerCameraServiceManager {
     }
 
     public void requestDelegatedPermissions() {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU
+                && hasCapability(ICameraService.CAPABILITY_ASYNC_CALLBACKS)) {
             // This is a bit of a pain. We can't just request permissions one after the other,
             // because the requests are async. That means we would call into the Server's
             // PermissionRequestActivity a second time before it had finished the first time.
-            // Instead, we set it up such that we call it once, then it sends us a response (via a
-            // PendingIntent to MainActivity) when it finishes, then we can freely call it the
-            // second time.
-            MainActivity.setServerCallback(new MainActivity.SimpleCallback() {
-                @Override
-                public void run() {
-                    Log.i(TAG, "in MainActivity server callback");
-                    requestDelegatedPermission(android.Manifest.permission.CAMERA,
-                            false /* requestCallback */);
-                }
-            });
+            // Instead, we set it up such that we call it once, then it calls us back (via
+            // IPermissionResultCallback) when it finishes, then we can freely call it the second
+            // time.
             requestDelegatedPermission(Manifest.permission.POST_NOTIFICATIONS,
-                    true /* requestCallback */);
+                    new IPermissionResultCallback.Stub() {
+                        @Override
+                        public void onPermissionResult(String permission, boolean granted) {
+                            Log.i(TAG, "onPermissionResult(): " + permission +
+                                    (granted ? " granted" : " denied"));
+                            requestDelegatedPermission(android.Manifest.permission.CAMERA,
+                                    null /* callback */);
+                        }
+                    });
         } else {
-            requestDelegatedPermission(android.Manifest.permission.CAMERA,
-                    false /* requestCallback */);
+            // A Server without callbacks would never tell us when it was done with the first
+            // prompt, so just ask for the one that matters.
+            requestDelegatedPermission(android.Manifest.permission.CAMERA, null /* callback */);
         }
     }
 
@@ -102,14 +109,36 @@ public class ServerCameraServiceManager {
         mContextWrapper.getApplicationContext().startForegroundService(getCameraServiceIntent());
     }
 
-    public void delegateCameraToSurface(Surface surface) {
+    // `surfaceToken` should be a new Binder for every Surface. It identifies the Surface to the
+    // Server, so that delegating the same one again is harmless.
+    public void delegateCameraToSurface(IBinder surfaceToken, Surface surface) {
         if (mService == null) {
             Log.e(TAG, "service not bound?");
             return;
         }
 
         try {
-            mService.connectCameraToSurface(surface);
+            if (mServerVersion >= 1) {
+                mService.connectCameraToSurfaceForClient(surfaceToken, surface);
+            } else {
+                // The Server predates client tokens. Delegating the same Surface again will
+                // attach it again.
+                mService.connectCameraToSurface(surface);
+            }
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException: ", e);
+        }
+    }
+
+    public void undelegateCameraFromSurface(IBinder surfaceToken) {
+        if (mService == null || mServerVersion < 1) {
+            // The Server will notice the Surface is gone by itself, the next time it reconfigures
+            // its session.
+            return;
+        }
+
+        try {
+            mService.disconnectClient(surfaceToken);
         } catch (RemoteException e) {
             Log.e(TAG, "RemoteException: ", e);
         }
@@ -126,9 +155,42 @@ public class ServerCameraServiceManager {
         return mService != null;
     }
 
-    private void requestDelegatedPermission(String permission, boolean requestCallback) {
+    // Whether the bound Server supports one of the ICameraService.CAPABILITY_* features.
+    public boolean hasCapability(int capability) {
+        return (mServerCapabilities & capability) != 0;
+    }
+
+    private void negotiateCapabilities() {
+        // Calls a Server that predates versioning doesn't know come back as 0, which gates us
+        // down to the original calls.
         try {
-            PendingIntent pendingIntent = mService.getRequestPermissionPendingIntent(permission);
+            mServerVersion = mService.getInterfaceVersion();
+            mServerCapabilities = mService.getCapabilities();
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException: ", e);
+            mServerVersion = 0;
+            mServerCapabilities = 0;
+        }
+
+        Log.i(TAG, "server version " + mServerVersion + " (client " + ICameraService.VERSION
+                + "), capabilities 0x" + Integer.toHexString(mServerCapabilities));
+        // Frames always come over a Surface for now: this Client doesn't implement either of the
+        // reserved transports, whatever the Server says.
+        Log.i(TAG, "using Surface transport");
+    }
+
+    private void requestDelegatedPermission(String permission,
+                                            IPermissionResultCallback callback) {
+        // This can be called back from the Server after we've unbound.
+        ICameraService service = mService;
+        if (service == null) {
+            Log.e(TAG, "service not bound?");
+            return;
+        }
+
+        try {
+            PendingIntent pendingIntent =
+                    service.getRequestPermissionPendingIntent(permission, callback);
 
             ActivityOptions activityOptions = ActivityOptions.makeBasic();
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.UPSIDE_DOWN_CAKE) {
@@ -136,14 +198,8 @@ public class ServerCameraServiceManager {
                         ActivityOptions.MODE_BACKGROUND_ACTIVITY_START_ALLOWED);
             }
 
-            Intent intent = new Intent();
-            if (requestCallback) {
-                intent.putExtra(SERVER_EXTRA_CALLBACK,
-                        MainActivity.getPendingIntent(mContextWrapper));
-            }
-
             pendingIntent.send(mContextWrapper.getApplicationContext(), 0 /* code */,
-                    intent, null /* onFinished */, null /* handler */,
+                    null /* intent */, null /* onFinished */, null /* handler */,
                     null /* requiredPermission */, activityOptions.toBundle());
         } catch (RemoteException e) {
             Log.e(TAG, "remote exception: " + e);
@@ -0,0 +1,22 @@
+// The AIDL interface between the Server and its clients. Both the Server and Client projects
+// include this module (see their settings.gradle.kts), so there's a single copy of the interface.
+plugins {
+    alias(libs.plugins.android.library)
+}
+
+android {
+    namespace = "dev.hartmanng.contract"
+    compileSdkPreview = "Baklava"
+
+    defaultConfig {
+        minSdk = 28
+    }
+
+    compileOptions {
+        sourceCompatibility = JavaVersion.VERSION_1_8
+        targetCompatibility = JavaVersion.VERSION_1_8
+    }
+    buildFeatures {
+        aidl = true
+    }
+}
@@ -6,31 +6,200 @@ package dev.hartmanng.server;
 
 import android.content.Context;
 import android.content.pm.PackageManager;
+import android.graphics.ImageFormat;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraConstrainedHighSpeedCaptureSession;
 import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
 import android.hardware.camera2.params.OutputConfiguration;
 import android.hardware.camera2.params.SessionConfiguration;
+import android.hardware.camera2.params.StreamConfigurationMap;
 import android.util.Log;
+import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.SystemClock;
+import android.util.Range;
+import android.util.Size;
 import android.view.Surface;
 
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.Executor;
 
 import androidx.annotation.NonNull;
 import androidx.core.app.ActivityCompat;
 
+// Owns the camera device and a single capture session that streams to every attached output.
+//
+// The session is driven by an explicit state machine so that it can recover on its own when the
+// camera is taken away from us (e.g. another app briefly opens it, or the camera HAL restarts).
+// All state is only ever touched on mHandlerThread.
+//
+// Normally this is a regular session. While any constrained high-speed outputs are attached, the
+// session is instead a high-speed session containing only those outputs (the camera doesn't allow
+// anything else in one), and the regular outputs resume once the high-speed ones are gone.
+//
+// Every output shares the one repeating request, so a client that stops consuming its Surface
+// would otherwise hold up everyone else. Outputs that StallDetector decides have stalled are
+// temporarily left out of the repeating request, and let back in after a backoff.
 public class CameraManager implements Executor {
     private static final String TAG = "Server.CameraManager";
 
+    // Backoff used between attempts to reopen the camera after losing it.
+    private static final long INITIAL_REOPEN_DELAY_MS = 100;
+    private static final long MAX_REOPEN_DELAY_MS = 5000;
+    // The backoff only starts over once the session has been streaming for this long, so that a
+    // camera that keeps failing right after opening still gets backed off from.
+    private static final long STABLE_STREAMING_MS = 5000;
+
+    // Constrained high-speed sessions allow at most 2 outputs (typically preview and recording).
+    private static final int MAX_HIGH_SPEED_OUTPUTS = 2;
+    // A high-speed session whose every output has lost buffers while holding the session up, for
+    // this many stall checks in a row (about one a second, for a consumer that has gone away), is
+    // given up on.
+    private static final int ABANDONED_HIGH_SPEED_STALL_CHECKS = 3;
+
+    // A Surface attached to the session, along with a description of it for
+    // SessionConfigurationCache, and the client it belongs to (null for the server's own outputs).
+    private static class Output {
+        final Surface mSurface;
+        final String mSignature;
+        final IBinder mClientToken;
+        final StallDetector.OutputState mStallState = new StallDetector.OutputState();
+
+        Output(Surface surface, String signature, IBinder clientToken) {
+            mSurface = surface;
+            mSignature = signature;
+            mClientToken = clientToken;
+        }
+    }
+
+    // Told (on the camera thread) about client outputs dropped by the camera manager itself, e.g.
+    // because their Surface was abandoned or they were replaced, so that whoever attached them can
+    // forget them too. Not told about removeClient().
+    public interface OnClientDroppedListener {
+        void onClientDropped(IBinder clientToken);
+    }
+
+    enum State {
+        // Not connected to the camera at all (initial state, or after disconnect()).
+        CLOSED,
+        // openCamera() has been called and we are waiting for onOpened().
+        OPENING,
+        // createCaptureSession() has been called and we are waiting for onConfigured().
+        CONFIGURING,
+        // The repeating request is running.
+        STREAMING,
+        // We lost the camera and are waiting for AvailabilityCallback to tell us it's free again.
+        WAITING_FOR_CAMERA,
+        // A reopen attempt is scheduled on mHandler after a backoff delay.
+        REOPEN_PENDING,
+    }
+
     private HandlerThread mHandlerThread;
     private Handler mHandler;
-    private final Surface mSurface;
+    private Context mApplicationContext;
     private android.hardware.camera2.CameraManager mCameraManager;
+    private String mCameraId;
+
+    private final List<Output> mOutputs = new ArrayList<>();
+    // All the same size (mHighSpeedSize), and at most MAX_HIGH_SPEED_OUTPUTS of them.
+    private final List<Output> mHighSpeedOutputs = new ArrayList<>();
+    private Size mHighSpeedSize;
+    private Range<Integer> mHighSpeedFpsRange;
+    private final SessionMetrics mMetrics;
+    private final OnClientDroppedListener mOnClientDroppedListener;
+    private SessionConfigurationCache mSessionConfigurationCache;
+
+    private State mState = State.CLOSED;
+    private CameraDevice mCameraDevice;
+    private CameraCaptureSession mCameraCaptureSession;
+    // The callback for the most recent createCaptureSession() call. Callbacks for any earlier
+    // sessions are stale.
+    private SessionStateCallback mSessionStateCallback;
+    private boolean mCameraAvailable = true;
+    private long mReopenDelayMs = INITIAL_REOPEN_DELAY_MS;
+    // Set when we close our own CameraDevice, so that the onCameraAvailable() it causes isn't
+    // mistaken for someone else freeing up the camera.
+    private boolean mAwaitingOwnRelease = false;
+    // SystemClock.elapsedRealtime() at which the session broke, or 0 if it isn't broken.
+    private long mRecoveryStartMs = 0;
+    private final StallDetector mStallDetector = new StallDetector();
+    // Callbacks from removeClient() and removeOutput(), waiting for the camera to stop using the
+    // removed Surfaces. See runPendingOnRemoved().
+    private final List<Runnable> mPendingOnRemoved = new ArrayList<>();
+
+    private final Runnable mStallCheckRunnable = () -> {
+        if (mState != State.STREAMING) {
+            return;
+        }
+        checkForStalledOutputs();
+        if (mState == State.STREAMING) {
+            scheduleStallCheck();
+        }
+    };
+
+    private final Runnable mReopenRunnable = () -> {
+        if (mState != State.REOPEN_PENDING) {
+            return;
+        }
+        openCamera();
+    };
+
+    private final Runnable mResetReopenDelayRunnable = () -> {
+        if (mState == State.STREAMING) {
+            mReopenDelayMs = INITIAL_REOPEN_DELAY_MS;
+        }
+    };
+
+    private final android.hardware.camera2.CameraManager.AvailabilityCallback
+            mAvailabilityCallback =
+            new android.hardware.camera2.CameraManager.AvailabilityCallback() {
+                @Override
+                public void onCameraAvailable(@NonNull String cameraId) {
+                    if (!cameraId.equals(mCameraId)) {
+                        return;
+                    }
+
+                    Log.i(TAG, "mAvailabilityCallback.onCameraAvailable(): " + cameraId);
+                    mCameraAvailable = true;
+
+                    if (mAwaitingOwnRelease) {
+                        // This is just us letting go of the camera after losing it. Wait out the
+                        // backoff as usual, rather than reopening straight away and failing again.
+                        mAwaitingOwnRelease = false;
+                        if (mState == State.WAITING_FOR_CAMERA) {
+                            scheduleReopen();
+                        }
+                        return;
+                    }
+
+                    if (mState == State.WAITING_FOR_CAMERA || mState == State.REOPEN_PENDING) {
+                        // The camera is free again, so there's no point waiting out the rest of
+                        // the backoff.
+                        mHandler.removeCallbacks(mReopenRunnable);
+                        openCamera();
+                    }
+                }
+
+                @Override
+                public void onCameraUnavailable(@NonNull String cameraId) {
+                    if (!cameraId.equals(mCameraId)) {
+                        return;
+                    }
+
+                    Log.i(TAG, "mAvailabilityCallback.onCameraUnavailable(): " + cameraId);
+                    mCameraAvailable = false;
+                }
+            };
 
     private final CameraDevice.StateCallback mCameraDeviceStateCallback =
             new CameraDevice.StateCallback() {
@@ -38,124 +207,816 @@ public class CameraManager implements Executor {
                 public void onOpened(@NonNull CameraDevice cameraDevice) {
                     Log.i(TAG, "mCameraDeviceStateCallback.onOpened()");
 
-                    attemptCreateCaptureSession(cameraDevice, Collections.singletonList(
-                            new OutputConfiguration(mSurface)));
+                    if (mState != State.OPENING) {
+                        // disconnect() was called while we were opening.
+                        cameraDevice.close();
+                        return;
+                    }
+
+                    mCameraDevice = cameraDevice;
+                    attemptCreateCaptureSession();
                 }
 
                 @Override
                 public void onDisconnected(@NonNull CameraDevice cameraDevice) {
                     Log.i(TAG, "mCameraDeviceStateCallback.onDisconnected()");
+
+                    handleCameraLost(cameraDevice);
                 }
 
                 @Override
                 public void onError(@NonNull CameraDevice cameraDevice, int i) {
                     Log.i(TAG, "mCameraDeviceStateCallback.onError(): " + i);
+
+                    handleCameraLost(cameraDevice);
                 }
             };
 
-    private final CameraCaptureSession.StateCallback mCameraCaptureSessionStateCallback =
-            new CameraCaptureSession.StateCallback() {
+    private final CameraCaptureSession.CaptureCallback mCaptureCallback =
+            new CameraCaptureSession.CaptureCallback() {
                 @Override
-                public void onConfigured(@NonNull CameraCaptureSession cameraCaptureSession) {
-                    Log.i(TAG, "mCameraCaptureSessionStateCallback.onConfigured()");
-
-                    CaptureRequest.Builder captureRequestBuilder =
-                            attemptCreateCaptureRequestBuilder(cameraCaptureSession);
-                    if (captureRequestBuilder == null) {
-                        // This was already logged in attemptCreateCaptureRequestBuilder().
+                public void onCaptureCompleted(@NonNull CameraCaptureSession cameraCaptureSession,
+                                               @NonNull CaptureRequest captureRequest,
+                                               @NonNull TotalCaptureResult totalCaptureResult) {
+                    if (cameraCaptureSession != mCameraCaptureSession) {
                         return;
                     }
+                    Long frameDurationNs =
+                            totalCaptureResult.get(CaptureResult.SENSOR_FRAME_DURATION);
+                    mStallDetector.onResult(SystemClock.elapsedRealtime(),
+                            frameDurationNs == null ? 0 : frameDurationNs);
+                }
 
-                    captureRequestBuilder.addTarget(mSurface);
-                    attemptSetRepeatingRequest(cameraCaptureSession, captureRequestBuilder.build());
+                @Override
+                public void onCaptureFailed(@NonNull CameraCaptureSession cameraCaptureSession,
+                                            @NonNull CaptureRequest captureRequest,
+                                            @NonNull CaptureFailure captureFailure) {
+                    if (cameraCaptureSession != mCameraCaptureSession) {
+                        return;
+                    }
+                    // The session is still making progress, even if this frame didn't work out.
+                    mStallDetector.onResult(SystemClock.elapsedRealtime(),
+                            0 /* frameDurationNs */);
                 }
 
                 @Override
-                public void onConfigureFailed(@NonNull CameraCaptureSession cameraCaptureSession) {
-                    Log.i(TAG, "mCameraCaptureSessionStateCallback.onConfigureFailed()");
+                public void onCaptureBufferLost(@NonNull CameraCaptureSession cameraCaptureSession,
+                                                @NonNull CaptureRequest captureRequest,
+                                                @NonNull Surface surface, long frameNumber) {
+                    if (cameraCaptureSession != mCameraCaptureSession
+                            || mSessionStateCallback == null) {
+                        return;
+                    }
+
+                    mMetrics.recordLostBuffer();
+                    for (Output output : mSessionStateCallback.mSessionOutputs) {
+                        if (output.mSurface == surface) {
+                            output.mStallState.onBufferLost();
+                            return;
+                        }
+                    }
                 }
             };
 
+    private class SessionStateCallback extends CameraCaptureSession.StateCallback {
+        private final int mSessionType;
+        private final List<Output> mSessionOutputs;
+        private final String mSessionSignature;
+
+        SessionStateCallback(int sessionType, List<Output> sessionOutputs,
+                             String sessionSignature) {
+            mSessionType = sessionType;
+            mSessionOutputs = new ArrayList<>(sessionOutputs);
+            mSessionSignature = sessionSignature;
+        }
+
+        @Override
+        public void onConfigured(@NonNull CameraCaptureSession cameraCaptureSession) {
+            Log.i(TAG, "SessionStateCallback.onConfigured()");
+
+            if (this != mSessionStateCallback || mState != State.CONFIGURING) {
+                // Stale session from before a reconfigure or reopen.
+                return;
+            }
+
+            mSessionConfigurationCache.put(mCameraId, mSessionSignature, true /* supported */);
+            mCameraCaptureSession = cameraCaptureSession;
+            // The camera has let go of any Surfaces this session doesn't have.
+            runPendingOnRemoved();
+
+            if (!startRepeating()) {
+                return;
+            }
+
+            setState(State.STREAMING);
+            scheduleStallCheck();
+            mHandler.removeCallbacks(mResetReopenDelayRunnable);
+            mHandler.postDelayed(mResetReopenDelayRunnable, STABLE_STREAMING_MS);
+            if (mRecoveryStartMs != 0) {
+                long recoveryTimeMs = SystemClock.elapsedRealtime() - mRecoveryStartMs;
+                mRecoveryStartMs = 0;
+                mMetrics.recordRecovery(recoveryTimeMs);
+                Log.i(TAG, "recovered camera session in " + recoveryTimeMs + "ms");
+            }
+        }
+
+        // (Re)starts the repeating request on mCameraCaptureSession, targeting every output in the
+        // session that isn't quarantined.
+        boolean startRepeating() {
+            boolean highSpeed = mSessionType == SessionConfiguration.SESSION_HIGH_SPEED;
+            CaptureRequest.Builder captureRequestBuilder =
+                    attemptCreateCaptureRequestBuilder(mCameraCaptureSession,
+                            highSpeed ? CameraDevice.TEMPLATE_RECORD
+                                    : CameraDevice.TEMPLATE_PREVIEW);
+            if (captureRequestBuilder == null) {
+                // This was already logged in attemptCreateCaptureRequestBuilder().
+                return false;
+            }
+
+            boolean anyTargets = false;
+            for (Output output : mSessionOutputs) {
+                if (!output.mStallState.isQuarantined()) {
+                    captureRequestBuilder.addTarget(output.mSurface);
+                    anyTargets = true;
+                }
+            }
+            if (!anyTargets) {
+                // Only quarantined outputs are left (the healthy ones went away). A request needs
+                // at least one target, so let them all back in.
+                for (Output output : mSessionOutputs) {
+                    output.mStallState.readmit();
+                    captureRequestBuilder.addTarget(output.mSurface);
+                }
+            }
+
+            mStallDetector.reset(SystemClock.elapsedRealtime(),
+                    highSpeed ? 1_000_000_000L / mHighSpeedFpsRange.getUpper() : 0);
+            if (highSpeed) {
+                captureRequestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE,
+                        mHighSpeedFpsRange);
+                return attemptSetRepeatingBurst(
+                        (CameraConstrainedHighSpeedCaptureSession) mCameraCaptureSession,
+                        captureRequestBuilder.build());
+            }
+            return attemptSetRepeatingRequest(mCameraCaptureSession,
+                    captureRequestBuilder.build());
+        }
+
+        @Override
+        public void onConfigureFailed(@NonNull CameraCaptureSession cameraCaptureSession) {
+            Log.i(TAG, "SessionStateCallback.onConfigureFailed()");
+
+            if (this != mSessionStateCallback || mState != State.CONFIGURING) {
+                return;
+            }
+
+            // Either the HAL doesn't like this combination of outputs, or something transient
+            // happened (a client's Surface was abandoned mid-configure, or the camera was yanked
+            // away from us). We can't tell which, so this only counts against the combination
+            // for now, until it's failed enough times in a row.
+            mSessionConfigurationCache.recordConfigureFailure(mCameraId, mSessionSignature);
+
+            // Starting over from a fresh open is the most reliable way back. The next attempt
+            // will skip this combination if it keeps failing.
+            handleCameraLost(mCameraDevice);
+        }
+    }
+
+    public CameraManager(SessionMetrics metrics, OnClientDroppedListener onClientDroppedListener) {
+        mMetrics = metrics;
+        mOnClientDroppedListener = onClientDroppedListener;
+    }
+
     public CameraManager(Surface surface) {
-        mSurface = surface;
+        mMetrics = new SessionMetrics();
+        mOnClientDroppedListener = null;
+        mOutputs.add(new Output(surface, SessionConfigurationCache.surfaceOutputSignature(surface),
+                null /* clientToken */));
     }
 
     public void connect(Context applicationContext) {
+        mApplicationContext = applicationContext;
+        mSessionConfigurationCache = new SessionConfigurationCache(applicationContext);
         mCameraManager =
                 (android.hardware.camera2.CameraManager) applicationContext.getSystemService(
                         Context.CAMERA_SERVICE);
 
+        mCameraId = chooseCameraId(mCameraManager);
+        if (mCameraId == null) {
+            return;
+        }
+
+        mHandlerThread = new HandlerThread("CameraThread");
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper());
+
+        mCameraManager.registerAvailabilityCallback(mAvailabilityCallback, mHandler);
+
+        execute(this::openCamera);
+    }
+
+    // Attaches a client's Surface to the session. The session is rebuilt to include it. Does
+    // nothing if `clientToken` already has an output attached, so repeated requests are harmless.
+    public void addOutput(Surface surface, IBinder clientToken) {
+        execute(() -> {
+            if (isClientAttached(clientToken)) {
+                Log.i(TAG, "client already attached");
+                return;
+            }
+
+            // This has to happen before the camera connects to the Surface.
+            String signature = SessionConfigurationCache.surfaceOutputSignature(surface);
+            mOutputs.add(new Output(surface, signature, clientToken));
+            onOutputsChanged();
+        });
+    }
+
+    // Attaches one of the server's own outputs, with a fixed format and size, to the session. See
+    // SessionConfigurationCache.outputSignature().
+    public void addOutput(Surface surface, String signature) {
+        execute(() -> {
+            mOutputs.add(new Output(surface, signature, null /* clientToken */));
+            onOutputsChanged();
+        });
+    }
+
+    // Detaches one of the server's own outputs. `onRemoved` (if not null) is then run on the
+    // camera thread once the camera has let go of the Surface, so that whatever consumes it can
+    // safely be released.
+    public void removeOutput(Surface surface, Runnable onRemoved) {
+        execute(() -> {
+            boolean removed = false;
+            Iterator<Output> it = mOutputs.iterator();
+            while (it.hasNext()) {
+                if (it.next().mSurface == surface) {
+                    it.remove();
+                    removed = true;
+                    break;
+                }
+            }
+            onOutputsRemoved(removed, onRemoved);
+        });
+    }
+
+    // Attaches a constrained high-speed output, switching the session over to high-speed mode.
+    // `size` and `fpsRange` must be one of the combinations from
+    // getHighSpeedVideoConfigurations(), and the Surface must already be `size`.
+    public void addHighSpeedOutput(Surface surface, Size size, Range<Integer> fpsRange,
+                                   IBinder clientToken) {
+        execute(() -> {
+            if (isClientAttached(clientToken)) {
+                Log.i(TAG, "client already attached");
+                return;
+            }
+
+            if (!size.equals(mHighSpeedSize)) {
+                // All high-speed outputs must be the same size, so the new one replaces any others.
+                dropHighSpeedOutputs();
+                mHighSpeedSize = size;
+            }
+            if (mHighSpeedOutputs.size() >= MAX_HIGH_SPEED_OUTPUTS) {
+                notifyClientDropped(mHighSpeedOutputs.remove(0));
+            }
+
+            mHighSpeedOutputs.add(new Output(surface, SessionConfigurationCache.outputSignature(
+                    ImageFormat.PRIVATE, size.getWidth(), size.getHeight()), clientToken));
+            mHighSpeedFpsRange = fpsRange;
+            onOutputsChanged();
+        });
+    }
+
+    // Detaches every output `clientToken` attached, e.g. once that client has gone away.
+    // `onRemoved` (if not null) is then run on the camera thread once the camera has let go of
+    // their Surfaces, so that something else can connect to them.
+    public void removeClient(IBinder clientToken, Runnable onRemoved) {
+        if (mHandler == null) {
+            // Never connected, so nothing can have been attached.
+            if (onRemoved != null) {
+                onRemoved.run();
+            }
+            return;
+        }
+
+        execute(() -> {
+            boolean removed = removeClientOutputs(mOutputs, clientToken);
+            removed |= removeClientOutputs(mHighSpeedOutputs, clientToken);
+            onOutputsRemoved(removed, onRemoved);
+        });
+    }
+
+    public void disconnect() {
+        if (mHandler == null) {
+            return;
+        }
+
+        mCameraManager.unregisterAvailabilityCallback(mAvailabilityCallback);
+        execute(() -> {
+            setState(State.CLOSED);
+            mHandler.removeCallbacks(mReopenRunnable);
+            mHandler.removeCallbacks(mStallCheckRunnable);
+            closeCamera();
+            mHandlerThread.quitSafely();
+        });
+    }
+
+    // The sizes the camera can output in the given ImageFormat. Only valid after connect().
+    public Size[] getOutputSizes(int format) {
+        if (mCameraId == null) {
+            Log.e(TAG, "getOutputSizes(): not connected");
+            return new Size[0];
+        }
+
+        StreamConfigurationMap map;
+        try {
+            map = mCameraManager.getCameraCharacteristics(mCameraId)
+                    .get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "getOutputSizes(): camera access exception: " + e);
+            return new Size[0];
+        }
+
+        Size[] sizes = map == null ? null : map.getOutputSizes(format);
+        return sizes == null ? new Size[0] : sizes;
+    }
+
+    // Every constrained high-speed combination supported by the camera connect() would use,
+    // flattened as [width, height, minFps, maxFps, width, height, minFps, maxFps, ...]. Empty if
+    // the camera doesn't support high-speed video. Only reads the camera's characteristics, so it
+    // doesn't need a CameraManager to be connected (or the camera to be opened).
+    public static int[] getHighSpeedVideoConfigurations(Context applicationContext) {
+        android.hardware.camera2.CameraManager cameraManager =
+                (android.hardware.camera2.CameraManager) applicationContext.getSystemService(
+                        Context.CAMERA_SERVICE);
+        String cameraId = chooseCameraId(cameraManager);
+        if (cameraId == null) {
+            return new int[0];
+        }
+        return getHighSpeedVideoConfigurations(cameraManager, cameraId);
+    }
+
+    // Only valid after connect().
+    public boolean isHighSpeedVideoConfigurationSupported(int width, int height, int minFps,
+                                                          int maxFps) {
+        if (mCameraId == null) {
+            Log.e(TAG, "isHighSpeedVideoConfigurationSupported(): not connected");
+            return false;
+        }
+
+        int[] configurations = getHighSpeedVideoConfigurations(mCameraManager, mCameraId);
+        for (int i = 0; i + 3 < configurations.length; i += 4) {
+            if (configurations[i] == width && configurations[i + 1] == height
+                    && configurations[i + 2] == minFps && configurations[i + 3] == maxFps) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String chooseCameraId(android.hardware.camera2.CameraManager cameraManager) {
         String[] cameraIds;
         try {
-            cameraIds = mCameraManager.getCameraIdList();
+            cameraIds = cameraManager.getCameraIdList();
         } catch (CameraAccessException e) {
             Log.e(TAG, "camera access exception: " + e);
-            return;
+            return null;
         }
 
         if (cameraIds.length == 0) {
             Log.e(TAG, "no cameras found");
-            return;
+            return null;
         }
 
-        mHandlerThread = new HandlerThread("CameraThread");
-        mHandlerThread.start();
-        mHandler = new Handler(mHandlerThread.getLooper());
-
-        if (ActivityCompat.checkSelfPermission(applicationContext,
-                android.Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED) {
-            Log.e(TAG, "camera permission not granted");
-            return;
-        }
+        // Obviously there are better ways to select a camera than just picking the first one.
+        // But this is good enough for demo purposes.
+        return cameraIds[0];
+    }
 
+    private static int[] getHighSpeedVideoConfigurations(
+            android.hardware.camera2.CameraManager cameraManager, String cameraId) {
+        CameraCharacteristics characteristics;
         try {
-            // Obviously there are better ways to select a camera than just picking the first one.
-            // But this is good enough for demo purposes.
-            mCameraManager.openCamera(cameraIds[0],
-                    mCameraDeviceStateCallback,
-                    mHandler);
+            characteristics = cameraManager.getCameraCharacteristics(cameraId);
         } catch (CameraAccessException e) {
-            Log.e(TAG, "connect(): camera access exception: " + e);
+            Log.e(TAG, "getHighSpeedVideoConfigurations(): camera access exception: " + e);
+            return new int[0];
         }
+
+        int[] capabilities =
+                characteristics.get(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES);
+        boolean supported = false;
+        if (capabilities != null) {
+            for (int capability : capabilities) {
+                if (capability == CameraCharacteristics
+                        .REQUEST_AVAILABLE_CAPABILITIES_CONSTRAINED_HIGH_SPEED_VIDEO) {
+                    supported = true;
+                    break;
+                }
+            }
+        }
+        StreamConfigurationMap map =
+                characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        if (!supported || map == null) {
+            return new int[0];
+        }
+
+        List<Integer> configurations = new ArrayList<>();
+        for (Size size : map.getHighSpeedVideoSizes()) {
+            for (Range<Integer> fpsRange : map.getHighSpeedVideoFpsRangesFor(size)) {
+                configurations.add(size.getWidth());
+                configurations.add(size.getHeight());
+                configurations.add(fpsRange.getLower());
+                configurations.add(fpsRange.getUpper());
+            }
+        }
+
+        int[] result = new int[configurations.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = configurations.get(i);
+        }
+        return result;
     }
 
     // Implements Executor interface.
     @Override
     public void execute(Runnable command) {
+        if (mHandler == null) {
+            Log.e(TAG, "not connected");
+            return;
+        }
+
         if (!mHandler.post(command)) {
             Log.e(TAG, "mHandler failed to post");
         }
     }
 
-    private void attemptCreateCaptureSession(CameraDevice cameraDevice,
-                                             List<OutputConfiguration> outputConfigs) {
+    private void setState(State state) {
+        if (mState != state) {
+            Log.i(TAG, "state: " + mState + " -> " + state);
+            mState = state;
+        }
+    }
+
+    private void onOutputsRemoved(boolean removed, Runnable onRemoved) {
+        if (onRemoved != null) {
+            mPendingOnRemoved.add(onRemoved);
+        }
+        if (removed) {
+            onOutputsChanged();
+        }
+        if (mState != State.CONFIGURING) {
+            // There's no session being built that's waiting to replace the current one, so the
+            // camera isn't using the removed Surfaces (any more).
+            runPendingOnRemoved();
+        }
+    }
+
+    // Runs once the camera is no longer using any Surface that was removed: when a session built
+    // without them has been configured, or when the camera has been closed.
+    private void runPendingOnRemoved() {
+        List<Runnable> pending = new ArrayList<>(mPendingOnRemoved);
+        mPendingOnRemoved.clear();
+        for (Runnable onRemoved : pending) {
+            onRemoved.run();
+        }
+    }
+
+    private void onOutputsChanged() {
+        switch (mState) {
+            case CLOSED:
+                // Most likely a previous attempt failed for lack of permission. Try again.
+                openCamera();
+                break;
+            case CONFIGURING:
+            case STREAMING:
+                attemptCreateCaptureSession();
+                break;
+            default:
+                // The new output will be picked up once the camera is reopened.
+                break;
+        }
+    }
+
+    private void openCamera() {
+        if (!hasOutputs()) {
+            // Nobody to stream to, so there's no reason to hold the camera. The next addOutput()
+            // will open it again.
+            Log.i(TAG, "no outputs, not opening camera");
+            mRecoveryStartMs = 0;
+            setState(State.CLOSED);
+            return;
+        }
+
+        if (ActivityCompat.checkSelfPermission(mApplicationContext,
+                android.Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED) {
+            Log.e(TAG, "camera permission not granted");
+            setState(State.CLOSED);
+            return;
+        }
+
+        setState(State.OPENING);
         try {
-            cameraDevice.createCaptureSession(
-                    new SessionConfiguration(SessionConfiguration.SESSION_REGULAR, outputConfigs,
-                            CameraManager.this /* executor */, mCameraCaptureSessionStateCallback));
+            mCameraManager.openCamera(mCameraId, mCameraDeviceStateCallback, mHandler);
         } catch (CameraAccessException e) {
-            Log.e(TAG, "attemptCreateCaptureSession(): camera access exception: " + e);
+            Log.e(TAG, "openCamera(): camera access exception: " + e);
+            scheduleReopen();
         }
     }
 
+    private void closeCamera() {
+        mHandler.removeCallbacks(mResetReopenDelayRunnable);
+        if (mCameraCaptureSession != null) {
+            mCameraCaptureSession.close();
+            mCameraCaptureSession = null;
+        }
+        if (mCameraDevice != null) {
+            mAwaitingOwnRelease = true;
+            mCameraDevice.close();
+            mCameraDevice = null;
+        }
+        runPendingOnRemoved();
+    }
+
+    private void handleCameraLost(CameraDevice cameraDevice) {
+        if (mState == State.CLOSED) {
+            cameraDevice.close();
+            return;
+        }
+
+        if (mRecoveryStartMs == 0) {
+            mRecoveryStartMs = SystemClock.elapsedRealtime();
+        }
+
+        if (cameraDevice != mCameraDevice) {
+            cameraDevice.close();
+        }
+        closeCamera();
+        scheduleReopen();
+    }
+
+    private void scheduleReopen() {
+        mHandler.removeCallbacks(mReopenRunnable);
+
+        if (!mCameraAvailable) {
+            // No point in hammering the camera while someone else holds it. mAvailabilityCallback
+            // will kick off the reopen once it's free.
+            setState(State.WAITING_FOR_CAMERA);
+            return;
+        }
+
+        setState(State.REOPEN_PENDING);
+        Log.i(TAG, "reopening camera in " + mReopenDelayMs + "ms");
+        mHandler.postDelayed(mReopenRunnable, mReopenDelayMs);
+        mReopenDelayMs = Math.min(mReopenDelayMs * 2, MAX_REOPEN_DELAY_MS);
+    }
+
+    private void scheduleStallCheck() {
+        mHandler.removeCallbacks(mStallCheckRunnable);
+        mHandler.postDelayed(mStallCheckRunnable, StallDetector.CHECK_INTERVAL_MS);
+    }
+
+    // Called every StallDetector.CHECK_INTERVAL_MS while streaming.
+    private void checkForStalledOutputs() {
+        List<Output> outputs = mSessionStateCallback.mSessionOutputs;
+        List<StallDetector.OutputState> states = new ArrayList<>();
+        boolean[] wasQuarantined = new boolean[outputs.size()];
+        for (int i = 0; i < outputs.size(); i++) {
+            StallDetector.OutputState state = outputs.get(i).mStallState;
+            states.add(state);
+            wasQuarantined[i] = state.isQuarantined();
+        }
+
+        boolean targetsChanged = mStallDetector.check(states, SystemClock.elapsedRealtime());
+
+        if (mSessionStateCallback.mSessionType == SessionConfiguration.SESSION_HIGH_SPEED
+                && mStallDetector.getConsecutiveAllFrozenChecks()
+                        >= ABANDONED_HIGH_SPEED_STALL_CHECKS) {
+            // Every high-speed output keeps holding the session up until its buffers are given
+            // up on, so whoever was consuming them has most likely gone away without releasing
+            // the Surfaces (which stay valid as far as we can tell). Consumers that are merely
+            // slow don't hold the session up, and are left alone. Since high-speed outputs take
+            // over the whole session, the regular outputs would otherwise stay black
+            // indefinitely.
+            Log.e(TAG, "high-speed outputs abandoned, going back to the regular outputs");
+            dropHighSpeedOutputs();
+            attemptCreateCaptureSession();
+            return;
+        }
+
+        if (!targetsChanged) {
+            return;
+        }
+
+        for (int i = 0; i < outputs.size(); i++) {
+            boolean quarantined = outputs.get(i).mStallState.isQuarantined();
+            if (quarantined && !wasQuarantined[i]) {
+                Log.i(TAG, "quarantining stalled output: " + outputs.get(i).mSignature);
+                mMetrics.recordStalledOutput();
+            } else if (!quarantined && wasQuarantined[i]) {
+                Log.i(TAG, "readmitting output on probation: " + outputs.get(i).mSignature);
+                mMetrics.recordReadmittedOutput();
+            }
+        }
+
+        // Only the repeating request changes. The session keeps every output, so there's no need
+        // to reconfigure.
+        mSessionStateCallback.startRepeating();
+    }
+
+    private boolean isClientAttached(IBinder clientToken) {
+        if (clientToken == null) {
+            return false;
+        }
+        for (Output output : mOutputs) {
+            if (output.mClientToken == clientToken) {
+                return true;
+            }
+        }
+        for (Output output : mHighSpeedOutputs) {
+            if (output.mClientToken == clientToken) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean removeClientOutputs(List<Output> outputs, IBinder clientToken) {
+        boolean removed = false;
+        Iterator<Output> it = outputs.iterator();
+        while (it.hasNext()) {
+            if (it.next().mClientToken == clientToken) {
+                it.remove();
+                removed = true;
+            }
+        }
+        return removed;
+    }
+
+    private void notifyClientDropped(Output output) {
+        if (output.mClientToken != null && mOnClientDroppedListener != null) {
+            mOnClientDroppedListener.onClientDropped(output.mClientToken);
+        }
+    }
+
+    private void dropHighSpeedOutputs() {
+        for (Output output : mHighSpeedOutputs) {
+            notifyClientDropped(output);
+        }
+        mHighSpeedOutputs.clear();
+    }
+
+    private boolean hasOutputs() {
+        return !mOutputs.isEmpty() || !mHighSpeedOutputs.isEmpty();
+    }
+
+    private void attemptCreateCaptureSession() {
+        // High-speed outputs take over the whole session while there are any.
+        boolean highSpeed = !mHighSpeedOutputs.isEmpty();
+        List<Output> outputs = highSpeed ? mHighSpeedOutputs : mOutputs;
+        int sessionType = highSpeed ? SessionConfiguration.SESSION_HIGH_SPEED
+                : SessionConfiguration.SESSION_REGULAR;
+
+        setState(State.CONFIGURING);
+        while (!outputs.isEmpty()) {
+            List<OutputConfiguration> outputConfigs = new ArrayList<>();
+            List<String> outputSignatures = new ArrayList<>();
+            Iterator<Output> it = outputs.iterator();
+            while (it.hasNext()) {
+                Output output = it.next();
+                try {
+                    outputConfigs.add(new OutputConfiguration(output.mSurface));
+                } catch (IllegalArgumentException e) {
+                    // The client's end of the Surface has gone away (e.g. the client was
+                    // backgrounded without disconnecting). Our own Surface object still looks
+                    // valid, so this is the first we hear of it. Keeping the output would just
+                    // make every configure fail.
+                    Log.i(TAG, "dropping abandoned output: " + e);
+                    it.remove();
+                    notifyClientDropped(output);
+                    continue;
+                }
+                outputSignatures.add(output.mSignature);
+            }
+            if (outputConfigs.isEmpty()) {
+                continue;
+            }
+
+            String sessionSignature =
+                    SessionConfigurationCache.sessionSignature(sessionType, outputSignatures);
+            SessionStateCallback callback =
+                    new SessionStateCallback(sessionType, outputs, sessionSignature);
+            SessionConfiguration sessionConfiguration = new SessionConfiguration(sessionType,
+                    outputConfigs, CameraManager.this /* executor */, callback);
+
+            if (!isSessionConfigurationSupported(sessionConfiguration, sessionSignature)) {
+                // The newest output is the one that tipped the session over into being
+                // unsupported. Dropping it keeps everyone else streaming.
+                Output rejected = outputs.remove(outputs.size() - 1);
+                Log.e(TAG, "session configuration unsupported, dropping output: "
+                        + rejected.mSignature);
+                notifyClientDropped(rejected);
+                continue;
+            }
+
+            mSessionStateCallback = callback;
+            try {
+                mCameraDevice.createCaptureSession(sessionConfiguration);
+            } catch (CameraAccessException | IllegalArgumentException e) {
+                Log.e(TAG, "attemptCreateCaptureSession(): exception: " + e);
+                handleCameraLost(mCameraDevice);
+            }
+            return;
+        }
+
+        if (highSpeed) {
+            // None of the high-speed outputs could be configured. Go back to the regular ones.
+            attemptCreateCaptureSession();
+            return;
+        }
+
+        // Every output went away (or couldn't be configured). Let the camera go rather than
+        // holding it open with no session, which would also have us grabbing it back whenever
+        // another app releases it.
+        Log.i(TAG, "no outputs to stream to, closing camera");
+        mSessionStateCallback = null;
+        mRecoveryStartMs = 0;
+        closeCamera();
+        setState(State.CLOSED);
+    }
+
+    // Checks SessionConfigurationCache first, then asks the camera if it can. Only returns false if
+    // we know for sure that the configuration won't work.
+    private boolean isSessionConfigurationSupported(SessionConfiguration sessionConfiguration,
+                                                    String sessionSignature) {
+        switch (mSessionConfigurationCache.get(mCameraId, sessionSignature)) {
+            case SUPPORTED:
+                return true;
+            case UNSUPPORTED:
+                return false;
+            default:
+                break;
+        }
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.S) {
+            return true;
+        }
+
+        boolean supported;
+        try {
+            supported = mCameraDevice.isSessionConfigurationSupported(sessionConfiguration);
+        } catch (CameraAccessException | UnsupportedOperationException
+                 | IllegalArgumentException e) {
+            // The camera can't tell us ahead of time, so we'll have to find out by trying.
+            Log.i(TAG, "isSessionConfigurationSupported(): " + e);
+            return true;
+        }
+
+        mSessionConfigurationCache.put(mCameraId, sessionSignature, supported);
+        return supported;
+    }
+
     private CaptureRequest.Builder attemptCreateCaptureRequestBuilder(
-            CameraCaptureSession cameraCaptureSession) {
+            CameraCaptureSession cameraCaptureSession, int template) {
         try {
-            return cameraCaptureSession.getDevice()
-                    .createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+            return cameraCaptureSession.getDevice().createCaptureRequest(template);
         } catch (CameraAccessException e) {
             Log.e(TAG, "attemptCreateCaptureRequestBuilder(): camera access exception: " + e);
+            handleCameraLost(cameraCaptureSession.getDevice());
         }
         return null;
     }
 
-    private void attemptSetRepeatingRequest(CameraCaptureSession cameraCaptureSession,
-                                            CaptureRequest captureRequest) {
+    private boolean attemptSetRepeatingRequest(CameraCaptureSession cameraCaptureSession,
+                                               CaptureRequest captureRequest) {
         try {
-            cameraCaptureSession.setRepeatingRequest(captureRequest, null /* captureCallback */,
-                    mHandler);
+            cameraCaptureSession.setRepeatingRequest(captureRequest, mCaptureCallback, mHandler);
+            return true;
         } catch (CameraAccessException e) {
             Log.e(TAG, "attemptSetRepeatingRequest(): camera access exception: " + e);
+            handleCameraLost(cameraCaptureSession.getDevice());
+        }
+        return false;
+    }
+
+    // High-speed sessions need their requests split into bursts by the session itself, and driven
+    // with setRepeatingBurst() instead of setRepeatingRequest().
+    private boolean attemptSetRepeatingBurst(
+            CameraConstrainedHighSpeedCaptureSession cameraCaptureSession,
+            CaptureRequest captureRequest) {
+        try {
+            List<CaptureRequest> burst =
+                    cameraCaptureSession.createHighSpeedRequestList(captureRequest);
+            cameraCaptureSession.setRepeatingBurst(burst, mCaptureCallback, mHandler);
+            return true;
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "attemptSetRepeatingBurst(): camera access exception: " + e);
+            handleCameraLost(cameraCaptureSession.getDevice());
+        } catch (IllegalArgumentException e) {
+            // The request doesn't fit the high-speed constraints (e.g. the Surface isn't one of
+            // the advertised sizes).
+            Log.e(TAG, "attemptSetRepeatingBurst(): bad request: " + e);
+            dropHighSpeedOutputs();
+            attemptCreateCaptureSession();
         }
+        return false;
     }
 }
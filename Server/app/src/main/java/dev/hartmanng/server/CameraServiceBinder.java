@@ -6,32 +6,475 @@ package dev.hartmanng.server;
 
 import android.app.PendingIntent;
 import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.RectF;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.RemoteException;
 import android.util.Log;
+import android.util.Range;
+import android.util.Size;
 import android.view.Surface;
 
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class CameraServiceBinder extends ICameraService.Stub {
     private static final String TAG = "Server.CameraServiceBinder";
 
+    // What a client (identified by the token it passes to the connect calls) is attached as.
+    private static class Client {
+        String mConfiguration;
+        final IBinder.DeathRecipient mDeathRecipient;
+
+        Client(String configuration, IBinder.DeathRecipient deathRecipient) {
+            mConfiguration = configuration;
+            mDeathRecipient = deathRecipient;
+        }
+    }
+
+    // A client with zero shutter lag enabled.
+    private static class ZslClient {
+        int mMaxFrames;
+        final IBinder.DeathRecipient mDeathRecipient;
+
+        ZslClient(int maxFrames, IBinder.DeathRecipient deathRecipient) {
+            mMaxFrames = maxFrames;
+            mDeathRecipient = deathRecipient;
+        }
+    }
+
     private final Context mApplicationContext;
+    private final SessionMetrics mMetrics = new SessionMetrics();
+
+    // Every command that touches the camera session runs on this queue, so the fields below are
+    // only ever accessed on its thread (apart from the volatile reads noted).
+    private final SessionCommandQueue mCommandQueue = new SessionCommandQueue(mMetrics);
+
+    // Every client output is attached to the same CameraManager, so they all share one camera
+    // session (and all get recovered together if the camera goes away).
+    private CameraManager mCameraManager = null;
+    // Only exists while some client has a transformed stream.
+    private FrameProcessor mFrameProcessor = null;
+    // The clients attached to mFrameProcessor.
+    private final Set<IBinder> mTransformedClients = new HashSet<>();
+    // Only exists while some client has zero shutter lag enabled. Also read directly on binder
+    // threads by captureZeroShutterLagFrame().
+    private volatile ZslRingBuffer mZslRingBuffer = null;
+    // Keyed by client token.
+    private final Map<IBinder, ZslClient> mZslClients = new HashMap<>();
+    // Keyed by client token.
+    private final Map<IBinder, Client> mClients = new HashMap<>();
 
     public CameraServiceBinder(Context applicationContext) {
         mApplicationContext = applicationContext;
     }
 
     @Override
-    public PendingIntent getRequestPermissionPendingIntent(String permission) {
+    public PendingIntent getRequestPermissionPendingIntent(String permission,
+                                                           IPermissionResultCallback callback) {
         Log.i(TAG, "getRequestPermissionPendingIntent(): " + permission);
 
-        return PermissionRequestActivity.getPendingIntent(mApplicationContext, permission);
+        return PermissionRequestActivity.getPendingIntent(mApplicationContext, permission,
+                callback);
     }
 
+    // The connect calls without a client token each get a token of our own, so that they're
+    // handled just like the ...ForClient() calls. Such a token never dies and the client can't
+    // disconnect it, so the output stays until its Surface is abandoned.
     @Override
     public void connectCameraToSurface(Surface surface) {
-        Log.i(TAG, "connectCameraToSurface()");
+        connectCameraToSurfaceForClient(new Binder(), surface);
+    }
+
+    @Override
+    public void connectCameraToSurfaceWithTransform(Surface surface, RectF crop,
+                                                    int rotationDegrees, int width, int height) {
+        connectCameraToSurfaceWithTransformForClient(new Binder(), surface, crop,
+                rotationDegrees, width, height);
+    }
+
+    @Override
+    public Bundle getSessionMetrics() {
+        return mMetrics.toBundle();
+    }
+
+    @Override
+    public Bundle enableZeroShutterLag(int maxFrames) {
+        // Nothing would ever let go of the frames (or the camera), so this is refused.
+        Log.e(TAG, "enableZeroShutterLag(): use enableZeroShutterLagForClient()");
+        return new Bundle();
+    }
+
+    @Override
+    public long captureZeroShutterLagFrame(long timestampNs, Surface surface) {
+        Log.i(TAG, "captureZeroShutterLagFrame(): " + timestampNs);
+
+        // This only reads from the ring buffer and doesn't change the session, so there's no need
+        // to wait behind session commands.
+        ZslRingBuffer zslRingBuffer = mZslRingBuffer;
+        if (zslRingBuffer == null) {
+            Log.e(TAG, "zero shutter lag not enabled");
+            return -1;
+        }
+
+        return zslRingBuffer.deliverFrame(timestampNs, surface);
+    }
+
+    @Override
+    public int[] getHighSpeedVideoConfigurations() {
+        // Read-only, so there's no need to wait behind session commands (or to open the camera).
+        return CameraManager.getHighSpeedVideoConfigurations(mApplicationContext);
+    }
+
+    @Override
+    public void connectCameraToSurfaceHighSpeed(Surface surface, int width, int height,
+                                                int minFps, int maxFps) {
+        connectCameraToSurfaceHighSpeedForClient(new Binder(), surface, width, height, minFps,
+                maxFps);
+    }
+
+    @Override
+    public int getInterfaceVersion() {
+        return VERSION;
+    }
+
+    @Override
+    public int getCapabilities() {
+        int capabilities = CAPABILITY_ASYNC_CALLBACKS | CAPABILITY_HIGH_SPEED;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            // Both write frames out with format-specific ImageWriters.
+            capabilities |= CAPABILITY_TRANSFORM | CAPABILITY_ZERO_SHUTTER_LAG;
+        }
+        return capabilities;
+    }
+
+    @Override
+    public void disconnectClient(IBinder clientToken) {
+        Log.i(TAG, "disconnectClient()");
+
+        mCommandQueue.submit(() -> detachClient(clientToken));
+    }
+
+    @Override
+    public void connectCameraToSurfaceForClient(IBinder clientToken, Surface surface) {
+        Log.i(TAG, "connectCameraToSurfaceForClient()");
+
+        mCommandQueue.submit(() -> attachClient(clientToken, "direct",
+                () -> getCameraManager().addOutput(surface, clientToken)));
+    }
+
+    @Override
+    public void connectCameraToSurfaceWithTransformForClient(IBinder clientToken,
+                                                             Surface surface, RectF crop,
+                                                             int rotationDegrees, int width,
+                                                             int height) {
+        Log.i(TAG, "connectCameraToSurfaceWithTransformForClient(): " + crop + ", "
+                + rotationDegrees + ", " + width + "x" + height);
+
+        mCommandQueue.submit(() -> attachClient(clientToken,
+                "transform:" + crop + "," + rotationDegrees + "," + width + "x" + height,
+                () -> attachTransformedOutput(clientToken, surface, crop, rotationDegrees, width,
+                        height)));
+    }
+
+    @Override
+    public void connectCameraToSurfaceHighSpeedForClient(IBinder clientToken, Surface surface,
+                                                         int width, int height, int minFps,
+                                                         int maxFps) {
+        Log.i(TAG, "connectCameraToSurfaceHighSpeedForClient(): " + width + "x" + height
+                + " @ [" + minFps + ", " + maxFps + "]");
+
+        mCommandQueue.submit(() -> attachClient(clientToken,
+                "highSpeed:" + width + "x" + height + "@" + minFps + "-" + maxFps,
+                () -> attachHighSpeedOutput(clientToken, surface, width, height, minFps,
+                        maxFps)));
+    }
+
+    @Override
+    public Bundle enableZeroShutterLagForClient(IBinder clientToken, int maxFrames) {
+        Log.i(TAG, "enableZeroShutterLagForClient(): " + maxFrames);
+
+        // The client needs the result, so this one has to wait for the queue.
+        return mCommandQueue.submitAndWait(() -> enableZsl(clientToken, maxFrames),
+                new Bundle());
+    }
+
+    @Override
+    public void disableZeroShutterLag(IBinder clientToken) {
+        Log.i(TAG, "disableZeroShutterLag()");
+
+        mCommandQueue.submit(() -> disableZsl(clientToken));
+    }
+
+    public void release() {
+        mCommandQueue.submit(() -> {
+            for (Map.Entry<IBinder, Client> entry : mClients.entrySet()) {
+                entry.getKey().unlinkToDeath(entry.getValue().mDeathRecipient, 0 /* flags */);
+            }
+            mClients.clear();
+            for (Map.Entry<IBinder, ZslClient> entry : mZslClients.entrySet()) {
+                entry.getKey().unlinkToDeath(entry.getValue().mDeathRecipient, 0 /* flags */);
+            }
+            mZslClients.clear();
+            mTransformedClients.clear();
+
+            if (mCameraManager != null) {
+                mCameraManager.disconnect();
+                mCameraManager = null;
+            }
+            if (mFrameProcessor != null) {
+                mFrameProcessor.release();
+                mFrameProcessor = null;
+            }
+            if (mZslRingBuffer != null) {
+                mZslRingBuffer.release();
+                mZslRingBuffer = null;
+            }
+        });
+        mCommandQueue.quit();
+    }
+
+    // Runs `attach` for a client, unless it's already attached with the same `configuration` (e.g.
+    // the user double-tapped "DELEGATE CAMERA"). A client asking for something different replaces
+    // whatever it had before. Clients are detached automatically if they die.
+    private void attachClient(IBinder clientToken, String configuration, Runnable attach) {
+        if (clientToken == null) {
+            Log.e(TAG, "no client token");
+            return;
+        }
+
+        Client client = mClients.get(clientToken);
+        if (client != null) {
+            if (client.mConfiguration.equals(configuration)) {
+                Log.i(TAG, "client already attached: " + configuration);
+                mMetrics.recordDuplicateCommand();
+                return;
+            }
+
+            Log.i(TAG, "client reattaching: " + client.mConfiguration + " -> " + configuration);
+            client.mConfiguration = configuration;
+            // The new attachment connects a new producer to the same Surface, which can't happen
+            // until the old one has disconnected from it.
+            final Client reattachingClient = client;
+            detachOutputs(clientToken, () -> {
+                if (mClients.get(clientToken) != reattachingClient
+                        || !reattachingClient.mConfiguration.equals(configuration)) {
+                    // The client detached or reattached again in the meantime.
+                    return;
+                }
+                attach.run();
+            });
+            return;
+        }
+
+        IBinder.DeathRecipient deathRecipient =
+                () -> mCommandQueue.submit(() -> detachClient(clientToken));
+        try {
+            clientToken.linkToDeath(deathRecipient, 0 /* flags */);
+        } catch (RemoteException e) {
+            Log.i(TAG, "client already dead: " + e);
+            return;
+        }
+        mClients.put(clientToken, new Client(configuration, deathRecipient));
+        attach.run();
+    }
+
+    private void detachClient(IBinder clientToken) {
+        Client client = mClients.remove(clientToken);
+        if (client == null) {
+            return;
+        }
+
+        Log.i(TAG, "detaching client: " + client.mConfiguration);
+        clientToken.unlinkToDeath(client.mDeathRecipient, 0 /* flags */);
+        detachOutputs(clientToken, null /* onDetached */);
+    }
+
+    // Detaches everything `clientToken` had attached. `onDetached` (if not null) is then run on the
+    // command queue once nothing is connected to the client's Surface any more.
+    private void detachOutputs(IBinder clientToken, Runnable onDetached) {
+        // One for the CameraManager, one for the FrameProcessor.
+        AtomicInteger remaining = new AtomicInteger(2);
+        Runnable onEachDetached = () -> {
+            if (remaining.decrementAndGet() == 0 && onDetached != null) {
+                mCommandQueue.submit(onDetached);
+            }
+        };
+
+        if (mCameraManager != null) {
+            mCameraManager.removeClient(clientToken, onEachDetached);
+        } else {
+            onEachDetached.run();
+        }
+        if (mTransformedClients.remove(clientToken)) {
+            mFrameProcessor.removeClient(clientToken, onEachDetached);
+            releaseFrameProcessorIfUnused();
+        } else {
+            onEachDetached.run();
+        }
+    }
+
+    // Otherwise its ImageReader would keep the camera open (and streaming frames nobody wants)
+    // after the last transformed client has gone.
+    private void releaseFrameProcessorIfUnused() {
+        if (mFrameProcessor == null || !mTransformedClients.isEmpty()) {
+            return;
+        }
+
+        Log.i(TAG, "no transformed clients left, releasing frame processor");
+        mCameraManager.removeOutput(mFrameProcessor.getInputSurface(),
+                mFrameProcessor::release);
+        mFrameProcessor = null;
+    }
+
+    private CameraManager getCameraManager() {
+        if (mCameraManager == null) {
+            mCameraManager = new CameraManager(mMetrics,
+                    clientToken -> mCommandQueue.submit(() -> detachClient(clientToken)));
+            mCameraManager.connect(mApplicationContext);
+        }
+        return mCameraManager;
+    }
+
+    private void attachTransformedOutput(IBinder clientToken, Surface surface, RectF crop,
+                                         int rotationDegrees, int width, int height) {
+        CameraManager cameraManager = getCameraManager();
+        if (mFrameProcessor == null) {
+            Size inputSize = FrameProcessor.chooseInputSize(
+                    cameraManager.getOutputSizes(ImageFormat.YUV_420_888));
+            if (inputSize == null) {
+                Log.e(TAG, "no suitable YUV size for frame processing");
+                cameraManager.addOutput(surface, clientToken);
+                return;
+            }
+
+            // A client whose Surface was abandoned is detached like any other departing client.
+            mFrameProcessor = new FrameProcessor(inputSize.getWidth(), inputSize.getHeight(),
+                    token -> mCommandQueue.submit(() -> detachClient(token)));
+            cameraManager.addOutput(mFrameProcessor.getInputSurface(),
+                    SessionConfigurationCache.outputSignature(ImageFormat.YUV_420_888,
+                            inputSize.getWidth(), inputSize.getHeight()));
+        }
+
+        if (!mFrameProcessor.addClient(clientToken, surface, crop, rotationDegrees, width,
+                height)) {
+            // This was already logged in addClient(). An untransformed stream is better than none.
+            releaseFrameProcessorIfUnused();
+            cameraManager.addOutput(surface, clientToken);
+            return;
+        }
+        mTransformedClients.add(clientToken);
+    }
+
+    private void attachHighSpeedOutput(IBinder clientToken, Surface surface, int width,
+                                       int height, int minFps, int maxFps) {
+        CameraManager cameraManager = getCameraManager();
+        if (!cameraManager.isHighSpeedVideoConfigurationSupported(width, height, minFps,
+                maxFps)) {
+            // A regular stream is better than none.
+            Log.e(TAG, "unsupported high-speed configuration");
+            cameraManager.addOutput(surface, clientToken);
+            return;
+        }
+
+        cameraManager.addHighSpeedOutput(surface, new Size(width, height),
+                new Range<>(minFps, maxFps), clientToken);
+    }
+
+    private Bundle enableZsl(IBinder clientToken, int maxFrames) {
+        if (clientToken == null) {
+            Log.e(TAG, "no client token");
+            return new Bundle();
+        }
+
+        ZslClient zslClient = mZslClients.get(clientToken);
+        if (zslClient != null) {
+            zslClient.mMaxFrames = maxFrames;
+        } else {
+            IBinder.DeathRecipient deathRecipient =
+                    () -> mCommandQueue.submit(() -> disableZsl(clientToken));
+            try {
+                clientToken.linkToDeath(deathRecipient, 0 /* flags */);
+            } catch (RemoteException e) {
+                Log.i(TAG, "client already dead: " + e);
+                return new Bundle();
+            }
+            mZslClients.put(clientToken, new ZslClient(maxFrames, deathRecipient));
+        }
+
+        Bundle description = attachZslRingBuffer(getZslCapacity());
+        if (mZslRingBuffer == null) {
+            // Couldn't be set up, so there's nothing for this client to hold on to.
+            disableZsl(clientToken);
+        }
+        return description;
+    }
+
+    private void disableZsl(IBinder clientToken) {
+        ZslClient zslClient = mZslClients.remove(clientToken);
+        if (zslClient == null) {
+            return;
+        }
+        clientToken.unlinkToDeath(zslClient.mDeathRecipient, 0 /* flags */);
+
+        if (!mZslClients.isEmpty()) {
+            // Only keep as many frames as the remaining clients want.
+            attachZslRingBuffer(getZslCapacity());
+            return;
+        }
+
+        if (mZslRingBuffer != null) {
+            // Otherwise the ring buffer would pin its frames, and keep the camera open, for good.
+            Log.i(TAG, "no zero shutter lag clients left, releasing ring buffer");
+            mCameraManager.removeOutput(mZslRingBuffer.getInputSurface(),
+                    mZslRingBuffer::release);
+            mZslRingBuffer = null;
+        }
+    }
+
+    // The most frames any client asked for.
+    private int getZslCapacity() {
+        int capacity = 0;
+        for (ZslClient zslClient : mZslClients.values()) {
+            capacity = Math.max(capacity, zslClient.mMaxFrames);
+        }
+        return capacity;
+    }
+
+    private Bundle attachZslRingBuffer(int maxFrames) {
+        CameraManager cameraManager = getCameraManager();
+        if (mZslRingBuffer != null) {
+            if (mZslRingBuffer.setCapacity(maxFrames)) {
+                return mZslRingBuffer.describe();
+            }
+
+            // Its ImageReader is too small for that many frames, so swap in a bigger one. The
+            // frames held so far are lost.
+            Log.i(TAG, "replacing zero shutter lag ring buffer to hold " + maxFrames + " frames");
+            cameraManager.removeOutput(mZslRingBuffer.getInputSurface(),
+                    mZslRingBuffer::release);
+            mZslRingBuffer = null;
+        }
+
+        Size size = ZslRingBuffer.chooseSize(
+                cameraManager.getOutputSizes(ImageFormat.YUV_420_888));
+        if (size == null) {
+            Log.e(TAG, "no YUV sizes for zero shutter lag");
+            return new Bundle();
+        }
 
-        // This is probably not cleaned up properly (the CameraManager never really "lets go" of the
-        // camera).
-        CameraManager cameraManager = new CameraManager(surface);
-        cameraManager.connect(mApplicationContext);
+        ZslRingBuffer zslRingBuffer =
+                new ZslRingBuffer(size.getWidth(), size.getHeight(), maxFrames);
+        cameraManager.addOutput(zslRingBuffer.getInputSurface(),
+                SessionConfigurationCache.outputSignature(ImageFormat.YUV_420_888,
+                        size.getWidth(), size.getHeight()));
+        mZslRingBuffer = zslRingBuffer;
+        return zslRingBuffer.describe();
     }
 }
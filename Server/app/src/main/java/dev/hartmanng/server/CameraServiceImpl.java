@@ -19,7 +19,7 @@ import androidx.core.app.ServiceCompat;
 public class CameraServiceImpl extends Service {
     private static final String TAG = "Server.CameraServiceImpl";
 
-    private ICameraService.Stub mBinder = null;
+    private CameraServiceBinder mBinder = null;
 
     @Override
     public void onCreate() {
@@ -72,6 +72,7 @@ public class CameraServiceImpl extends Service {
     public void onDestroy() {
         Log.i(TAG, "onDestroy()");
 
+        mBinder.release();
         mBinder = null;
     }
 }
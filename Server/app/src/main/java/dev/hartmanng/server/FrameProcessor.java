@@ -0,0 +1,371 @@
+// Copyright 2025 The Chromium Authors
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package dev.hartmanng.server;
+
+import android.graphics.ImageFormat;
+import android.graphics.RectF;
+import android.media.Image;
+import android.media.ImageReader;
+import android.media.ImageWriter;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Optional server-side processing stage for clients that want a cropped, rotated or downscaled
+// view of the camera instead of the raw stream.
+//
+// The camera streams YUV frames into mImageReader (attached to the shared camera session like any
+// other output). Each frame is copied into a pooled YuvFrame, then each distinct FrameTransform
+// is run once, split into row tiles across a worker pool, and the result is written into every
+// client Surface that asked for that transform through an ImageWriter.
+//
+// Everything except the tile workers runs on mHandlerThread.
+public class FrameProcessor {
+    private static final String TAG = "Server.FrameProcessor";
+
+    // Keep the input at or below 1080p. Bigger frames just cost more CPU to copy and transform.
+    private static final int MAX_INPUT_PIXELS = 1920 * 1080;
+    private static final int MAX_READER_IMAGES = 3;
+    private static final int MAX_WRITER_IMAGES = 2;
+    // Must be even so that each tile covers whole chroma rows.
+    private static final int TILE_ROWS = 64;
+
+    private final int mInputWidth;
+    private final int mInputHeight;
+    private final HandlerThread mHandlerThread;
+    private final Handler mHandler;
+    private final ImageReader mImageReader;
+    private final ExecutorService mWorkers;
+    private final YuvFramePool mFramePool = new YuvFramePool(4 /* maxPooledPerSize */);
+    private final Map<FrameTransform, TransformStage> mStages = new HashMap<>();
+    private final OnClientDroppedListener mOnClientDroppedListener;
+
+    // Told (on mHandlerThread) about clients dropped because their Surface was abandoned, so that
+    // whoever attached them can forget them too.
+    public interface OnClientDroppedListener {
+        void onClientDropped(IBinder clientToken);
+    }
+
+    // A client Surface fed by a TransformStage. dequeueInputImage() blocks until the client's
+    // consumer gives a buffer back, so a client that stops consuming would otherwise stall every
+    // other client. Instead, frames are dropped for just that client while all of its buffers are
+    // in flight.
+    private class ClientWriter {
+        final IBinder mClientToken;
+        final ImageWriter mWriter;
+        // Queued to the consumer and not yet released back to us.
+        int mInFlight = 0;
+
+        ClientWriter(IBinder clientToken, ImageWriter writer) {
+            mClientToken = clientToken;
+            mWriter = writer;
+            mWriter.setOnImageReleasedListener(w -> mInFlight = Math.max(0, mInFlight - 1),
+                    mHandler);
+        }
+    }
+
+    // All the clients sharing one FrameTransform. The tile tasks are allocated once per stage and
+    // reused for every frame.
+    private class TransformStage {
+        final FrameTransform mTransform;
+        final List<ClientWriter> mWriters = new ArrayList<>();
+        final Runnable[] mTiles;
+
+        // Only valid while the stage is running.
+        YuvFrame mSrc;
+        YuvFrame mDst;
+        CountDownLatch mTilesRemaining;
+
+        TransformStage(FrameTransform transform) {
+            mTransform = transform;
+            mTiles = new Runnable[(transform.outputHeight + TILE_ROWS - 1) / TILE_ROWS];
+            for (int i = 0; i < mTiles.length; i++) {
+                final int rowStart = i * TILE_ROWS;
+                final int rowEnd = rowStart + TILE_ROWS;
+                mTiles[i] = () -> {
+                    try {
+                        YuvKernels.transform(mSrc, mTransform, mDst, rowStart, rowEnd);
+                    } finally {
+                        mTilesRemaining.countDown();
+                    }
+                };
+            }
+        }
+
+        void run(YuvFrame src) {
+            mSrc = src;
+            mDst = mFramePool.acquire(mTransform.outputWidth, mTransform.outputHeight);
+            mTilesRemaining = new CountDownLatch(mTiles.length);
+            for (Runnable tile : mTiles) {
+                mWorkers.execute(tile);
+            }
+
+            try {
+                mTilesRemaining.await();
+            } catch (InterruptedException e) {
+                Log.e(TAG, "interrupted while transforming: " + e);
+                Thread.currentThread().interrupt();
+                mFramePool.release(mDst);
+                return;
+            }
+
+            Iterator<ClientWriter> it = mWriters.iterator();
+            while (it.hasNext()) {
+                ClientWriter client = it.next();
+                if (!writeFrame(client, mDst)) {
+                    it.remove();
+                    client.mWriter.close();
+                    mOnClientDroppedListener.onClientDropped(client.mClientToken);
+                }
+            }
+
+            mFramePool.release(mDst);
+            mSrc = null;
+            mDst = null;
+        }
+    }
+
+    // Picks the largest size (up to MAX_INPUT_PIXELS) from the camera's supported YUV sizes.
+    public static Size chooseInputSize(Size[] yuvSizes) {
+        Size best = null;
+        for (Size size : yuvSizes) {
+            long pixels = (long) size.getWidth() * size.getHeight();
+            if (pixels > MAX_INPUT_PIXELS) {
+                continue;
+            }
+            if (best == null || pixels > (long) best.getWidth() * best.getHeight()) {
+                best = size;
+            }
+        }
+        return best;
+    }
+
+    public FrameProcessor(int inputWidth, int inputHeight,
+                          OnClientDroppedListener onClientDroppedListener) {
+        mInputWidth = inputWidth;
+        mInputHeight = inputHeight;
+        mOnClientDroppedListener = onClientDroppedListener;
+
+        mHandlerThread = new HandlerThread("FrameProcessorThread");
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper());
+
+        mWorkers = Executors.newFixedThreadPool(
+                Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+
+        mImageReader = ImageReader.newInstance(inputWidth, inputHeight,
+                ImageFormat.YUV_420_888, MAX_READER_IMAGES);
+        mImageReader.setOnImageAvailableListener(this::onImageAvailable, mHandler);
+    }
+
+    // The Surface to attach to the camera session.
+    public Surface getInputSurface() {
+        return mImageReader.getSurface();
+    }
+
+    // Returns false if the transform couldn't be set up, in which case the caller should fall back
+    // to streaming to the Surface directly. `clientToken` identifies the client for
+    // removeClient().
+    public boolean addClient(IBinder clientToken, Surface surface, RectF crop,
+                             int rotationDegrees, int width, int height) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            // We need ImageWriter.newInstance() with an explicit format, otherwise the writer
+            // would use the Surface's (most likely RGB) format.
+            Log.e(TAG, "frame processing requires Android Q or above");
+            return false;
+        }
+
+        FrameTransform transform;
+        try {
+            transform = FrameTransform.fromNormalizedCrop(mInputWidth, mInputHeight, crop.left,
+                    crop.top, crop.right, crop.bottom, rotationDegrees, width, height);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "bad transform: " + e);
+            return false;
+        }
+
+        ImageWriter writer;
+        try {
+            writer = ImageWriter.newInstance(surface, MAX_WRITER_IMAGES,
+                    ImageFormat.YUV_420_888);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "couldn't create ImageWriter: " + e);
+            return false;
+        }
+
+        if (!mHandler.post(() -> {
+            TransformStage stage = mStages.get(transform);
+            if (stage == null) {
+                Log.i(TAG, "new stage: " + transform);
+                stage = new TransformStage(transform);
+                mStages.put(transform, stage);
+            }
+            stage.mWriters.add(new ClientWriter(clientToken, writer));
+        })) {
+            Log.e(TAG, "mHandler failed to post");
+            writer.close();
+            return false;
+        }
+        return true;
+    }
+
+    // `onRemoved` (if not null) is run on mHandlerThread once the client's ImageWriters have been
+    // closed, and so have disconnected from its Surface.
+    public void removeClient(IBinder clientToken, Runnable onRemoved) {
+        mHandler.post(() -> {
+            for (TransformStage stage : mStages.values()) {
+                Iterator<ClientWriter> it = stage.mWriters.iterator();
+                while (it.hasNext()) {
+                    ClientWriter client = it.next();
+                    if (client.mClientToken == clientToken) {
+                        it.remove();
+                        client.mWriter.close();
+                    }
+                }
+            }
+            // Any stages left empty are dropped on the next frame.
+            if (onRemoved != null) {
+                onRemoved.run();
+            }
+        });
+    }
+
+    public void release() {
+        mHandler.post(() -> {
+            mImageReader.close();
+            for (TransformStage stage : mStages.values()) {
+                for (ClientWriter client : stage.mWriters) {
+                    client.mWriter.close();
+                }
+            }
+            mStages.clear();
+            mFramePool.clear();
+            mWorkers.shutdown();
+            mHandlerThread.quitSafely();
+        });
+    }
+
+    private void onImageAvailable(ImageReader reader) {
+        // If we've fallen behind, skip straight to the newest frame.
+        Image image = reader.acquireLatestImage();
+        if (image == null) {
+            return;
+        }
+
+        if (mStages.isEmpty()) {
+            image.close();
+            return;
+        }
+
+        YuvFrame src = mFramePool.acquire(mInputWidth, mInputHeight);
+        readFrame(image, src);
+        image.close();
+
+        Iterator<TransformStage> it = mStages.values().iterator();
+        while (it.hasNext()) {
+            TransformStage stage = it.next();
+            stage.run(src);
+            if (stage.mWriters.isEmpty()) {
+                Log.i(TAG, "all clients gone from stage: " + stage.mTransform);
+                it.remove();
+            }
+        }
+
+        mFramePool.release(src);
+    }
+
+    // Returns false if the client's Surface is gone.
+    private static boolean writeFrame(ClientWriter client, YuvFrame frame) {
+        if (client.mInFlight >= MAX_WRITER_IMAGES) {
+            // The client hasn't finished with any of its buffers, so dequeueInputImage() would
+            // block. Skip this frame for it.
+            return true;
+        }
+
+        Image image;
+        try {
+            image = client.mWriter.dequeueInputImage();
+        } catch (IllegalStateException e) {
+            Log.i(TAG, "client surface abandoned: " + e);
+            return false;
+        }
+
+        // The Image is sized to the client's Surface. Clients are expected to set a fixed size
+        // matching the requested output, but don't overrun the buffer if they didn't.
+        int width = Math.min(image.getWidth(), frame.width);
+        int height = Math.min(image.getHeight(), frame.height);
+        Image.Plane[] planes = image.getPlanes();
+        copyPlane(frame.y, frame.width, planes[0], width, height, true /* toImage */);
+        copyPlane(frame.u, frame.chromaWidth(), planes[1], width / 2, height / 2,
+                true /* toImage */);
+        copyPlane(frame.v, frame.chromaWidth(), planes[2], width / 2, height / 2,
+                true /* toImage */);
+
+        try {
+            client.mWriter.queueInputImage(image);
+        } catch (IllegalStateException e) {
+            Log.i(TAG, "client surface abandoned: " + e);
+            return false;
+        }
+        client.mInFlight++;
+        return true;
+    }
+
+    private static void readFrame(Image image, YuvFrame frame) {
+        Image.Plane[] planes = image.getPlanes();
+        copyPlane(frame.y, frame.width, planes[0], frame.width, frame.height,
+                false /* toImage */);
+        copyPlane(frame.u, frame.chromaWidth(), planes[1], frame.chromaWidth(),
+                frame.chromaHeight(), false /* toImage */);
+        copyPlane(frame.v, frame.chromaWidth(), planes[2], frame.chromaWidth(),
+                frame.chromaHeight(), false /* toImage */);
+    }
+
+    // Copies a width x height region between a packed plane and an Image plane, in whichever
+    // direction `toImage` says, dealing with the Image's row and pixel strides.
+    private static void copyPlane(byte[] packed, int packedStride, Image.Plane plane, int width,
+                                  int height, boolean toImage) {
+        ByteBuffer buffer = plane.getBuffer();
+        int rowStride = plane.getRowStride();
+        int pixelStride = plane.getPixelStride();
+
+        for (int row = 0; row < height; row++) {
+            int packedIndex = row * packedStride;
+            int planeIndex = row * rowStride;
+
+            if (pixelStride == 1) {
+                buffer.position(planeIndex);
+                if (toImage) {
+                    buffer.put(packed, packedIndex, width);
+                } else {
+                    buffer.get(packed, packedIndex, width);
+                }
+                continue;
+            }
+
+            for (int col = 0; col < width; col++) {
+                if (toImage) {
+                    buffer.put(planeIndex + col * pixelStride, packed[packedIndex + col]);
+                } else {
+                    packed[packedIndex + col] = buffer.get(planeIndex + col * pixelStride);
+                }
+            }
+        }
+    }
+}
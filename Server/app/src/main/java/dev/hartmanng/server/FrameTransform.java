@@ -0,0 +1,98 @@
+// Copyright 2025 The Chromium Authors
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package dev.hartmanng.server;
+
+import java.util.Objects;
+
+// Describes how a client wants the camera frames transformed: crop a region out of the source
+// frame, rotate it clockwise by a multiple of 90 degrees, then scale it to the output size.
+//
+// Clients asking for the same transform share a single FrameProcessor stage, so this needs to be
+// usable as a map key. All dimensions are kept even so that the 4:2:0 chroma planes line up
+// exactly with the luma plane.
+//
+// Deliberately free of Android dependencies so that it can be unit tested on the host.
+public final class FrameTransform {
+    public final int cropLeft;
+    public final int cropTop;
+    public final int cropWidth;
+    public final int cropHeight;
+    public final int rotationDegrees;
+    public final int outputWidth;
+    public final int outputHeight;
+
+    public FrameTransform(int cropLeft, int cropTop, int cropWidth, int cropHeight,
+                          int rotationDegrees, int outputWidth, int outputHeight) {
+        if (rotationDegrees != 0 && rotationDegrees != 90 && rotationDegrees != 180
+                && rotationDegrees != 270) {
+            throw new IllegalArgumentException("unsupported rotation: " + rotationDegrees);
+        }
+        if (cropWidth < 2 || cropHeight < 2 || outputWidth < 2 || outputHeight < 2) {
+            throw new IllegalArgumentException("crop and output must be at least 2x2");
+        }
+
+        this.cropLeft = cropLeft & ~1;
+        this.cropTop = cropTop & ~1;
+        this.cropWidth = cropWidth & ~1;
+        this.cropHeight = cropHeight & ~1;
+        this.rotationDegrees = rotationDegrees;
+        this.outputWidth = outputWidth & ~1;
+        this.outputHeight = outputHeight & ~1;
+    }
+
+    // Builds a transform from a crop expressed as fractions of the source frame, since clients
+    // don't know what resolution the server is capturing at.
+    public static FrameTransform fromNormalizedCrop(int sourceWidth, int sourceHeight,
+                                                    float left, float top, float right,
+                                                    float bottom, int rotationDegrees,
+                                                    int outputWidth, int outputHeight) {
+        left = clamp(left);
+        top = clamp(top);
+        right = clamp(right);
+        bottom = clamp(bottom);
+        if (right <= left || bottom <= top) {
+            throw new IllegalArgumentException("empty crop");
+        }
+
+        int cropLeft = Math.round(left * sourceWidth);
+        int cropTop = Math.round(top * sourceHeight);
+        int cropRight = Math.round(right * sourceWidth);
+        int cropBottom = Math.round(bottom * sourceHeight);
+        return new FrameTransform(cropLeft, cropTop, cropRight - cropLeft, cropBottom - cropTop,
+                rotationDegrees, outputWidth, outputHeight);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof FrameTransform)) {
+            return false;
+        }
+        FrameTransform other = (FrameTransform) o;
+        return cropLeft == other.cropLeft && cropTop == other.cropTop
+                && cropWidth == other.cropWidth && cropHeight == other.cropHeight
+                && rotationDegrees == other.rotationDegrees && outputWidth == other.outputWidth
+                && outputHeight == other.outputHeight;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(cropLeft, cropTop, cropWidth, cropHeight, rotationDegrees,
+                outputWidth, outputHeight);
+    }
+
+    @Override
+    public String toString() {
+        return "FrameTransform{crop=" + cropLeft + "," + cropTop + " " + cropWidth + "x"
+                + cropHeight + ", rotation=" + rotationDegrees + ", output=" + outputWidth + "x"
+                + outputHeight + "}";
+    }
+
+    private static float clamp(float value) {
+        return Math.max(0f, Math.min(1f, value));
+    }
+}
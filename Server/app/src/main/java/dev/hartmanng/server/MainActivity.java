@@ -22,7 +22,9 @@ public class MainActivity extends AppCompatActivity {
     private static final String TAG = "Server.MainActivity";
 
     private VideoView mVideoView;
-    private CameraManager mCameraManager;
+    // At most one at a time. CameraManager recovers on its own when it loses the camera, so a
+    // stale one left connected would keep fighting the Service's CameraManager for it.
+    private CameraManager mCameraManager = null;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -44,6 +46,7 @@ public class MainActivity extends AppCompatActivity {
 
                 // Attach the camera to the local surface as soon as the Activity starts up. Not
                 // very exciting - this app mostly exists for the Service it exposes, not for this.
+                releaseCameraManager();
                 mCameraManager = new CameraManager(surfaceHolder.getSurface());
                 mCameraManager.connect(getApplicationContext());
             }
@@ -57,14 +60,32 @@ public class MainActivity extends AppCompatActivity {
             @Override
             public void surfaceDestroyed(@NonNull SurfaceHolder surfaceHolder) {
                 Log.i(TAG, "SurfaceHolder.Callback.surfaceDestroyed()");
+
+                releaseCameraManager();
             }
         });
 
         try {
             PermissionRequestActivity.getPendingIntent(getApplicationContext(),
-                    android.Manifest.permission.CAMERA).send();
+                    android.Manifest.permission.CAMERA, null /* callback */).send();
         } catch (PendingIntent.CanceledException e) {
             Log.e(TAG, "pending intent canceled: " + e);
         }
     }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+
+        Log.i(TAG, "onStop()");
+
+        releaseCameraManager();
+    }
+
+    private void releaseCameraManager() {
+        if (mCameraManager != null) {
+            mCameraManager.disconnect();
+            mCameraManager = null;
+        }
+    }
 }
\ No newline at end of file
@@ -10,7 +10,10 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
+import android.os.IBinder;
+import android.os.RemoteException;
 import android.util.Log;
+import android.util.SparseArray;
 
 import androidx.annotation.NonNull;
 import androidx.core.app.ActivityCompat;
@@ -21,17 +24,105 @@ public class PermissionRequestActivity extends Activity {
     private static final String TAG = "Server.PermissionRequestActivity";
 
     public static final String EXTRA_PERMISSION = "permission";
-    public static final String EXTRA_CALLBACK = "callback";
+    public static final String EXTRA_CALLBACK_ID = "callbackId";
 
-    private PendingIntent mPendingIntent = null;
+    private static final int NO_CALLBACK = -1;
+
+    // A callback handed to us by a client, waiting for its PendingIntent to start this activity.
+    private static class PendingCallback {
+        final IPermissionResultCallback mCallback;
+        IBinder.DeathRecipient mDeathRecipient;
+        PendingIntent mPendingIntent;
+
+        PendingCallback(IPermissionResultCallback callback) {
+            mCallback = callback;
+        }
+    }
+
+    // Binders can't safely ride along in the PendingIntent itself, so the Intent only carries a key
+    // into this map. Entries are removed when the activity picks them up, or when the client dies
+    // first. Both fields (and PendingCallback's non-final ones) are guarded by sCallbacks, since
+    // getPendingIntent() and death notifications run on binder threads.
+    private static final SparseArray<PendingCallback> sCallbacks = new SparseArray<>();
+    private static int sNextCallbackId = 0;
+
+    private String mPermission = null;
+    private IPermissionResultCallback mCallback = null;
+    private Boolean mGranted = null;
+
+    public static PendingIntent getPendingIntent(Context applicationContext, String permission,
+                                                 IPermissionResultCallback callback) {
+        int callbackId = NO_CALLBACK;
+        PendingCallback pendingCallback = null;
+        if (callback != null) {
+            pendingCallback = new PendingCallback(callback);
+            synchronized (sCallbacks) {
+                callbackId = sNextCallbackId++;
+                sCallbacks.put(callbackId, pendingCallback);
+            }
+
+            // If the client dies before using the PendingIntent, nobody is left to report to.
+            final int deadCallbackId = callbackId;
+            IBinder.DeathRecipient deathRecipient = () -> {
+                Log.i(TAG, "client died before starting the permission request");
+                PendingCallback dead = removeCallback(deadCallbackId);
+                PendingIntent deadPendingIntent;
+                synchronized (sCallbacks) {
+                    deadPendingIntent = dead != null ? dead.mPendingIntent : null;
+                }
+                if (deadPendingIntent != null) {
+                    deadPendingIntent.cancel();
+                }
+            };
+            try {
+                callback.asBinder().linkToDeath(deathRecipient, 0 /* flags */);
+                synchronized (sCallbacks) {
+                    pendingCallback.mDeathRecipient = deathRecipient;
+                }
+            } catch (RemoteException e) {
+                Log.e(TAG, "client already dead: " + e);
+                removeCallback(callbackId);
+                pendingCallback = null;
+                callbackId = NO_CALLBACK;
+            }
+        }
 
-    public static PendingIntent getPendingIntent(Context applicationContext, String permission) {
         Intent intent = new Intent(applicationContext, PermissionRequestActivity.class);
         intent.putExtra(EXTRA_PERMISSION, permission);
+        intent.putExtra(EXTRA_CALLBACK_ID, callbackId);
         intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
 
-        return PendingIntent.getActivity(applicationContext, 0 /* requestCode */, intent,
-                PendingIntent.FLAG_MUTABLE | PendingIntent.FLAG_UPDATE_CURRENT);
+        // Each callback gets its own request code so that outstanding PendingIntents don't
+        // overwrite each other's extras. They're one-shot, so that the system doesn't hang on to
+        // them once used.
+        PendingIntent pendingIntent = PendingIntent.getActivity(applicationContext,
+                callbackId == NO_CALLBACK ? 0 : callbackId + 1 /* requestCode */, intent,
+                PendingIntent.FLAG_IMMUTABLE | PendingIntent.FLAG_UPDATE_CURRENT
+                        | PendingIntent.FLAG_ONE_SHOT);
+        if (pendingCallback != null) {
+            synchronized (sCallbacks) {
+                pendingCallback.mPendingIntent = pendingIntent;
+            }
+        }
+        return pendingIntent;
+    }
+
+    // Removes and returns the callback with the given ID, or null if it's already gone.
+    private static PendingCallback removeCallback(int callbackId) {
+        PendingCallback pendingCallback;
+        IBinder.DeathRecipient deathRecipient = null;
+        synchronized (sCallbacks) {
+            pendingCallback = sCallbacks.get(callbackId);
+            sCallbacks.remove(callbackId);
+            if (pendingCallback != null) {
+                deathRecipient = pendingCallback.mDeathRecipient;
+                pendingCallback.mDeathRecipient = null;
+            }
+        }
+        if (deathRecipient != null) {
+            pendingCallback.mCallback.asBinder().unlinkToDeath(deathRecipient, 0 /* flags */);
+        }
+        return pendingCallback;
     }
 
     @Override
@@ -40,26 +131,28 @@ public class PermissionRequestActivity extends Activity {
 
         Log.i(TAG, "PermissionRequestActivity.onCreate()");
 
-        String permission = getIntent().getStringExtra(EXTRA_PERMISSION);
-        if (permission == null) {
-            Log.e(TAG, "EXTRA_PERMISSION missing on intent");
-            finish();
-            return;
+        int callbackId = getIntent().getIntExtra(EXTRA_CALLBACK_ID, NO_CALLBACK);
+        if (callbackId != NO_CALLBACK) {
+            PendingCallback pendingCallback = removeCallback(callbackId);
+            if (pendingCallback != null) {
+                mCallback = pendingCallback.mCallback;
+            }
         }
 
-        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.TIRAMISU) {
-            mPendingIntent = getIntent().getParcelableExtra(EXTRA_CALLBACK, PendingIntent.class);
+        if (mCallback == null) {
+            Log.i(TAG, "no callback");
         } else {
-            mPendingIntent = getIntent().getParcelableExtra(EXTRA_CALLBACK);
+            Log.i(TAG, "got callback");
         }
 
-        if (mPendingIntent == null) {
-            Log.i(TAG, "got null PendingIntent");
-        } else {
-            Log.i(TAG, "got non-null PendingIntent");
+        mPermission = getIntent().getStringExtra(EXTRA_PERMISSION);
+        if (mPermission == null) {
+            Log.e(TAG, "EXTRA_PERMISSION missing on intent");
+            finish();
+            return;
         }
 
-        ActivityCompat.requestPermissions(this /* activity */, new String[]{permission},
+        ActivityCompat.requestPermissions(this /* activity */, new String[]{mPermission},
                 0 /* requestCode */);
     }
 
@@ -72,6 +165,9 @@ public class PermissionRequestActivity extends Activity {
             Log.i(TAG, permissions[i] +
                     (grantResults[i] == PackageManager.PERMISSION_GRANTED ?
                             " granted" : " denied"));
+            if (permissions[i].equals(mPermission)) {
+                mGranted = grantResults[i] == PackageManager.PERMISSION_GRANTED;
+            }
         }
 
         finish();
@@ -83,12 +179,22 @@ public class PermissionRequestActivity extends Activity {
 
         Log.i(TAG, "PermissionRequestActivity.onStop()");
 
-        if (mPendingIntent != null) {
-            try {
-                mPendingIntent.send();
-            } catch (PendingIntent.CanceledException e) {
-                Log.e(TAG, "PendingIntent canceled: " + e);
-            }
+        // Report from here rather than onRequestPermissionsResult() so that the client can
+        // immediately start another prompt without this activity still being in the way.
+        if (mCallback == null) {
+            return;
+        }
+
+        IPermissionResultCallback callback = mCallback;
+        mCallback = null;
+
+        boolean granted = mGranted != null ? mGranted :
+                mPermission != null && ActivityCompat.checkSelfPermission(this /* context */,
+                        mPermission) == PackageManager.PERMISSION_GRANTED;
+        try {
+            callback.onPermissionResult(mPermission, granted);
+        } catch (RemoteException e) {
+            Log.e(TAG, "failed to report permission result: " + e);
         }
     }
 }
@@ -0,0 +1,74 @@
+// Copyright 2025 The Chromium Authors
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package dev.hartmanng.server;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+// Runs every command that changes the camera session, one at a time, on a single thread.
+//
+// Binder calls land on arbitrary threads from the binder pool. Rather than doing the work there
+// (and racing each other), CameraServiceBinder hands each command to this queue and returns
+// straight away. Since the commands run one at a time, they can safely check what's already
+// attached, which is how repeated requests (e.g. a user double-tapping "DELEGATE CAMERA") are
+// ignored. See CameraServiceBinder.attachClient().
+public class SessionCommandQueue {
+    private static final String TAG = "Server.SessionCommandQueue";
+
+    private final HandlerThread mHandlerThread;
+    private final Handler mHandler;
+    private final SessionMetrics mMetrics;
+
+    public SessionCommandQueue(SessionMetrics metrics) {
+        mMetrics = metrics;
+
+        mHandlerThread = new HandlerThread("SessionCommandThread");
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper());
+    }
+
+    // Queues `command` and returns immediately. Returns false if it couldn't be queued.
+    public boolean submit(Runnable command) {
+        long submitTimeMs = SystemClock.elapsedRealtime();
+
+        if (!mHandler.post(() -> {
+            mMetrics.recordCommand(SystemClock.elapsedRealtime() - submitTimeMs);
+            command.run();
+        })) {
+            Log.e(TAG, "mHandler failed to post");
+            return false;
+        }
+        return true;
+    }
+
+    // Queues `command` and waits for its result, for the few commands that need to return
+    // something to the client. Returns `fallback` if the command couldn't be run.
+    public <T> T submitAndWait(Callable<T> command, T fallback) {
+        FutureTask<T> task = new FutureTask<>(command);
+        if (!submit(task)) {
+            return fallback;
+        }
+
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "command failed: " + e);
+        } catch (InterruptedException e) {
+            Log.e(TAG, "interrupted waiting for command: " + e);
+            Thread.currentThread().interrupt();
+        }
+        return fallback;
+    }
+
+    public void quit() {
+        mHandlerThread.quitSafely();
+    }
+}
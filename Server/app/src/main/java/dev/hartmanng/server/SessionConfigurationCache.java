@@ -0,0 +1,138 @@
+// Copyright 2025 The Chromium Authors
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package dev.hartmanng.server;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.ImageWriter;
+import android.os.Build;
+import android.util.Log;
+import android.view.Surface;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Remembers which combinations of outputs each camera can (and can't) be configured with, so that
+// CameraManager never has to find out the slow way (a full round trip through the HAL ending in
+// onConfigureFailed()) more than once.
+//
+// Definite answers (from CameraDevice.isSessionConfigurationSupported(), or a session that actually
+// configured) are persisted in SharedPreferences so that they survive restarts. They are thrown
+// away whenever the system build changes, since an OS or HAL update can change what's supported.
+// onConfigureFailed() isn't a definite answer, so those are only remembered in memory. Neither is
+// anything about a session with a DISPLAY_OUTPUT_SIGNATURE output, since that signature covers
+// Surfaces of any size and format, so those answers aren't persisted at all.
+public class SessionConfigurationCache {
+    private static final String TAG = "Server.SessionConfigurationCache";
+
+    private static final String PREFS_NAME = "SessionConfigurationCache";
+    private static final String KEY_BUILD_FINGERPRINT = "buildFingerprint";
+
+    // How many times in a row a combination has to fail to configure before we stop trying it.
+    private static final int MAX_CONFIGURE_FAILURES = 3;
+
+    // Signature for outputs whose size and format can't be determined. Since it says nothing
+    // about the Surface, sessions with such an output are never persisted.
+    public static final String DISPLAY_OUTPUT_SIGNATURE = "display";
+
+    enum Result {
+        UNKNOWN,
+        SUPPORTED,
+        UNSUPPORTED,
+    }
+
+    private final SharedPreferences mPrefs;
+    // Key -> number of onConfigureFailed()s in a row this run.
+    private final Map<String, Integer> mConfigureFailures = new HashMap<>();
+
+    public SessionConfigurationCache(Context applicationContext) {
+        mPrefs = applicationContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+
+        if (!Build.FINGERPRINT.equals(mPrefs.getString(KEY_BUILD_FINGERPRINT, null))) {
+            mPrefs.edit()
+                    .clear()
+                    .putString(KEY_BUILD_FINGERPRINT, Build.FINGERPRINT)
+                    .apply();
+        }
+    }
+
+    // Signature for an output with a fixed ImageFormat and size (e.g. an ImageReader).
+    public static String outputSignature(int format, int width, int height) {
+        return format + ":" + width + "x" + height;
+    }
+
+    // Signature for a client-provided Surface (e.g. a SurfaceView), using the size and format its
+    // consumer set up. Finding those out means briefly connecting to the Surface as a producer, so
+    // this must be called before the camera is attached to it. Falls back to
+    // DISPLAY_OUTPUT_SIGNATURE where that isn't possible.
+    public static String surfaceOutputSignature(Surface surface) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.TIRAMISU) {
+            // ImageWriter can't report the size before T.
+            return DISPLAY_OUTPUT_SIGNATURE;
+        }
+
+        try (ImageWriter writer = ImageWriter.newInstance(surface, 1 /* maxImages */)) {
+            return outputSignature(writer.getFormat(), writer.getWidth(), writer.getHeight());
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            Log.i(TAG, "couldn't query surface: " + e);
+            return DISPLAY_OUTPUT_SIGNATURE;
+        }
+    }
+
+    // Signature for a whole session. Order of the outputs doesn't matter to the camera, so it
+    // doesn't matter here either.
+    public static String sessionSignature(int sessionType, List<String> outputSignatures) {
+        List<String> sorted = new ArrayList<>(outputSignatures);
+        Collections.sort(sorted);
+        return sessionType + "/" + String.join(",", sorted);
+    }
+
+    public Result get(String cameraId, String sessionSignature) {
+        String key = key(cameraId, sessionSignature);
+        Integer failures = mConfigureFailures.get(key);
+        if (failures != null && failures >= MAX_CONFIGURE_FAILURES) {
+            return Result.UNSUPPORTED;
+        }
+        if (!isPersistable(sessionSignature) || !mPrefs.contains(key)) {
+            return Result.UNKNOWN;
+        }
+        return mPrefs.getBoolean(key, false) ? Result.SUPPORTED : Result.UNSUPPORTED;
+    }
+
+    // Only for definite answers. See recordConfigureFailure() for onConfigureFailed().
+    public void put(String cameraId, String sessionSignature, boolean supported) {
+        String key = key(cameraId, sessionSignature);
+        if (supported) {
+            mConfigureFailures.remove(key);
+        }
+        if (!isPersistable(sessionSignature)) {
+            // One Surface with this signature being supported (or not) says nothing about the
+            // next one.
+            return;
+        }
+        mPrefs.edit().putBoolean(key, supported).apply();
+    }
+
+    // onConfigureFailed() also fires for transient reasons (a client abandoning its Surface
+    // mid-configure, or losing the camera), so a combination is only treated as unsupported once it
+    // has failed MAX_CONFIGURE_FAILURES times in a row, and never persisted.
+    public void recordConfigureFailure(String cameraId, String sessionSignature) {
+        String key = key(cameraId, sessionSignature);
+        Integer failures = mConfigureFailures.get(key);
+        mConfigureFailures.put(key, failures == null ? 1 : failures + 1);
+    }
+
+    // Whether the session's outputs are all described by their size and format.
+    private static boolean isPersistable(String sessionSignature) {
+        return !sessionSignature.contains(DISPLAY_OUTPUT_SIGNATURE);
+    }
+
+    private static String key(String cameraId, String sessionSignature) {
+        return "camera" + cameraId + "|" + sessionSignature;
+    }
+}
@@ -0,0 +1,92 @@
+// Copyright 2025 The Chromium Authors
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package dev.hartmanng.server;
+
+import android.os.Bundle;
+
+// Simple counters describing the health of the camera session. These are exposed to clients via
+// ICameraService.getSessionMetrics() so that problems can be diagnosed without needing logcat.
+public class SessionMetrics {
+    public static final String KEY_RECOVERY_COUNT = "recoveryCount";
+    public static final String KEY_LAST_RECOVERY_TIME_MS = "lastRecoveryTimeMs";
+    public static final String KEY_MAX_RECOVERY_TIME_MS = "maxRecoveryTimeMs";
+    public static final String KEY_TOTAL_RECOVERY_TIME_MS = "totalRecoveryTimeMs";
+    public static final String KEY_COMMAND_COUNT = "commandCount";
+    public static final String KEY_DUPLICATE_COMMAND_COUNT = "duplicateCommandCount";
+    public static final String KEY_LAST_QUEUE_LATENCY_MS = "lastQueueLatencyMs";
+    public static final String KEY_MAX_QUEUE_LATENCY_MS = "maxQueueLatencyMs";
+    public static final String KEY_TOTAL_QUEUE_LATENCY_MS = "totalQueueLatencyMs";
+    public static final String KEY_LOST_BUFFER_COUNT = "lostBufferCount";
+    public static final String KEY_STALLED_OUTPUT_COUNT = "stalledOutputCount";
+    public static final String KEY_READMITTED_OUTPUT_COUNT = "readmittedOutputCount";
+
+    private int mRecoveryCount = 0;
+    private long mLastRecoveryTimeMs = 0;
+    private long mMaxRecoveryTimeMs = 0;
+    private long mTotalRecoveryTimeMs = 0;
+    private int mCommandCount = 0;
+    private int mDuplicateCommandCount = 0;
+    private long mLastQueueLatencyMs = 0;
+    private long mMaxQueueLatencyMs = 0;
+    private long mTotalQueueLatencyMs = 0;
+    private int mLostBufferCount = 0;
+    private int mStalledOutputCount = 0;
+    private int mReadmittedOutputCount = 0;
+
+    // Records the time between the camera session breaking and it streaming again.
+    public synchronized void recordRecovery(long recoveryTimeMs) {
+        mRecoveryCount++;
+        mLastRecoveryTimeMs = recoveryTimeMs;
+        mMaxRecoveryTimeMs = Math.max(mMaxRecoveryTimeMs, recoveryTimeMs);
+        mTotalRecoveryTimeMs += recoveryTimeMs;
+    }
+
+    // Records how long a command sat in the SessionCommandQueue before it started running.
+    public synchronized void recordCommand(long queueLatencyMs) {
+        mCommandCount++;
+        mLastQueueLatencyMs = queueLatencyMs;
+        mMaxQueueLatencyMs = Math.max(mMaxQueueLatencyMs, queueLatencyMs);
+        mTotalQueueLatencyMs += queueLatencyMs;
+    }
+
+    // Records a connect request that was ignored because that client was already attached the
+    // same way.
+    public synchronized void recordDuplicateCommand() {
+        mDuplicateCommandCount++;
+    }
+
+    // Records a buffer the camera couldn't deliver to one of the outputs (usually because its
+    // consumer wasn't keeping up).
+    public synchronized void recordLostBuffer() {
+        mLostBufferCount++;
+    }
+
+    // Records an output being left out of the repeating request for stalling.
+    public synchronized void recordStalledOutput() {
+        mStalledOutputCount++;
+    }
+
+    // Records a stalled output being let back into the repeating request.
+    public synchronized void recordReadmittedOutput() {
+        mReadmittedOutputCount++;
+    }
+
+    public synchronized Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        bundle.putInt(KEY_RECOVERY_COUNT, mRecoveryCount);
+        bundle.putLong(KEY_LAST_RECOVERY_TIME_MS, mLastRecoveryTimeMs);
+        bundle.putLong(KEY_MAX_RECOVERY_TIME_MS, mMaxRecoveryTimeMs);
+        bundle.putLong(KEY_TOTAL_RECOVERY_TIME_MS, mTotalRecoveryTimeMs);
+        bundle.putInt(KEY_COMMAND_COUNT, mCommandCount);
+        bundle.putInt(KEY_DUPLICATE_COMMAND_COUNT, mDuplicateCommandCount);
+        bundle.putLong(KEY_LAST_QUEUE_LATENCY_MS, mLastQueueLatencyMs);
+        bundle.putLong(KEY_MAX_QUEUE_LATENCY_MS, mMaxQueueLatencyMs);
+        bundle.putLong(KEY_TOTAL_QUEUE_LATENCY_MS, mTotalQueueLatencyMs);
+        bundle.putInt(KEY_LOST_BUFFER_COUNT, mLostBufferCount);
+        bundle.putInt(KEY_STALLED_OUTPUT_COUNT, mStalledOutputCount);
+        bundle.putInt(KEY_READMITTED_OUTPUT_COUNT, mReadmittedOutputCount);
+        return bundle;
+    }
+}
@@ -0,0 +1,176 @@
+// Copyright 2025 The Chromium Authors
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package dev.hartmanng.server;
+
+import java.util.List;
+
+// Decides which outputs of a shared repeating request have stalled, and when to let them back in.
+//
+// When an output's consumer stops releasing buffers, the camera waits for one of that output's
+// buffers (for up to about a second) before giving up and reporting it lost, and every other
+// output on the request waits along with it. So a stalled output shows up as a gap in the capture
+// results, together with lost buffers for that output. An output whose consumer is merely falling
+// behind shows up as lots of lost buffers without the gap.
+//
+// Thresholds are in terms of the session's frame duration, so that they mean the same thing at
+// 30 fps as at 240 fps. This is plain Java, driven by CameraManager, so that it can be tested on
+// the host.
+public class StallDetector {
+    // How often check() should be called.
+    public static final long CHECK_INTERVAL_MS = 250;
+
+    // A gap between results this many frame durations long means the session was held up...
+    private static final int GAP_FRAMES = 6;
+    // ...clamped to stay clear of normal jitter, but well below the camera's buffer wait timeout.
+    private static final long MIN_GAP_MS = 100;
+    private static final long MAX_GAP_MS = 300;
+    // Without a gap, an output has stalled if it lost at least this fraction of the frames
+    // expected in a check interval, and at least MIN_LOST_BUFFERS.
+    private static final double LOST_FRACTION = 0.5;
+    private static final int MIN_LOST_BUFFERS = 3;
+    private static final long DEFAULT_FRAME_DURATION_NS = 33_333_333L;
+
+    // Backoff for how long a stalled output is left out of the repeating request.
+    static final long INITIAL_QUARANTINE_MS = 1000;
+    static final long MAX_QUARANTINE_MS = 30000;
+    // An output that stays healthy for this long after being let back in starts over from
+    // INITIAL_QUARANTINE_MS the next time it stalls.
+    static final long PROBATION_MS = 5000;
+
+    // Per-output state. Owned by whoever owns the output, so that it survives the session being
+    // rebuilt.
+    public static class OutputState {
+        // Since the last check().
+        private int mLostBuffers = 0;
+        // When the output is let back in, or 0 if it isn't quarantined.
+        private long mQuarantinedUntilMs = 0;
+        private long mNextQuarantineMs = INITIAL_QUARANTINE_MS;
+        private long mReadmittedAtMs = Long.MIN_VALUE / 2;
+
+        public void onBufferLost() {
+            mLostBuffers++;
+        }
+
+        public boolean isQuarantined() {
+            return mQuarantinedUntilMs != 0;
+        }
+
+        // Lets the output straight back in, e.g. when no other outputs are left.
+        public void readmit() {
+            mQuarantinedUntilMs = 0;
+        }
+    }
+
+    private long mFrameDurationNs = DEFAULT_FRAME_DURATION_NS;
+    private long mLastResultMs = 0;
+    // The longest gap between results since the last check().
+    private long mMaxGapMs = 0;
+    private int mConsecutiveAllFrozenChecks = 0;
+
+    // Called when the repeating request (re)starts. `frameDurationNs` is the expected frame
+    // duration, or 0 if it isn't known yet.
+    public void reset(long nowMs, long frameDurationNs) {
+        mFrameDurationNs = frameDurationNs > 0 ? frameDurationNs : DEFAULT_FRAME_DURATION_NS;
+        mLastResultMs = nowMs;
+        mMaxGapMs = 0;
+        mConsecutiveAllFrozenChecks = 0;
+    }
+
+    // Called for every capture result (successful or not). `frameDurationNs` is the frame duration
+    // the camera reported, or 0 if it didn't.
+    public void onResult(long nowMs, long frameDurationNs) {
+        mMaxGapMs = Math.max(mMaxGapMs, nowMs - mLastResultMs);
+        mLastResultMs = nowMs;
+        if (frameDurationNs > 0) {
+            mFrameDurationNs = frameDurationNs;
+        }
+    }
+
+    long getGapThresholdMs() {
+        long gapMs = GAP_FRAMES * mFrameDurationNs / 1_000_000;
+        return Math.max(MIN_GAP_MS, Math.min(gapMs, MAX_GAP_MS));
+    }
+
+    int getLostBufferThreshold() {
+        double expectedFrames = CHECK_INTERVAL_MS * 1_000_000.0 / mFrameDurationNs;
+        return Math.max(MIN_LOST_BUFFERS, (int) (expectedFrames * LOST_FRACTION));
+    }
+
+    // Lets back in any quarantined outputs whose time is up, then quarantines any that have stalled
+    // since the last check. If every output that isn't quarantined has stalled, that points at the
+    // camera rather than any one consumer, so none of them are quarantined. Returns whether the
+    // set of outputs that aren't quarantined changed, in which case the repeating request needs
+    // rebuilding.
+    public boolean check(List<OutputState> outputs, long nowMs) {
+        boolean heldUp = Math.max(mMaxGapMs, nowMs - mLastResultMs) > getGapThresholdMs();
+        int lostBufferThreshold = getLostBufferThreshold();
+        mMaxGapMs = 0;
+        boolean changed = false;
+
+        int activeCount = 0;
+        int stalledCount = 0;
+        for (OutputState output : outputs) {
+            if (output.isQuarantined() && nowMs >= output.mQuarantinedUntilMs) {
+                output.mQuarantinedUntilMs = 0;
+                output.mReadmittedAtMs = nowMs;
+                changed = true;
+            }
+
+            if (!output.isQuarantined()) {
+                activeCount++;
+                if (isStalled(output, heldUp, lostBufferThreshold)) {
+                    stalledCount++;
+                }
+            }
+        }
+
+        if (stalledCount > 0 && stalledCount == activeCount) {
+            // Every consumer falling behind at once (e.g. at high frame rates) isn't the same as
+            // every consumer having gone away. Only the latter holds the session up.
+            if (heldUp) {
+                mConsecutiveAllFrozenChecks++;
+            } else {
+                mConsecutiveAllFrozenChecks = 0;
+            }
+        } else if (stalledCount == 0 && heldUp) {
+            // Nothing came out, but nothing was lost either. The camera is most likely still
+            // waiting on a buffer, so this says nothing either way.
+        } else {
+            mConsecutiveAllFrozenChecks = 0;
+            for (OutputState output : outputs) {
+                if (output.isQuarantined()
+                        || !isStalled(output, heldUp, lostBufferThreshold)) {
+                    continue;
+                }
+
+                if (nowMs - output.mReadmittedAtMs > PROBATION_MS) {
+                    output.mNextQuarantineMs = INITIAL_QUARANTINE_MS;
+                }
+                output.mQuarantinedUntilMs = nowMs + output.mNextQuarantineMs;
+                output.mNextQuarantineMs =
+                        Math.min(output.mNextQuarantineMs * 2, MAX_QUARANTINE_MS);
+                changed = true;
+            }
+        }
+
+        for (OutputState output : outputs) {
+            output.mLostBuffers = 0;
+        }
+        return changed;
+    }
+
+    // How many check()s in a row have found the session held up, with every output that isn't
+    // quarantined losing buffers (not counting checks during which the session was held up
+    // without losing anything). Sustained loss without a gap starts the count over.
+    public int getConsecutiveAllFrozenChecks() {
+        return mConsecutiveAllFrozenChecks;
+    }
+
+    private static boolean isStalled(OutputState output, boolean heldUp,
+                                     int lostBufferThreshold) {
+        return output.mLostBuffers >= lostBufferThreshold
+                || (heldUp && output.mLostBuffers > 0);
+    }
+}
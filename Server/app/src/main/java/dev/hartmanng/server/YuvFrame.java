@@ -0,0 +1,38 @@
+// Copyright 2025 The Chromium Authors
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package dev.hartmanng.server;
+
+// A tightly packed planar YUV 4:2:0 (I420) frame. The camera's YUV_420_888 Images have arbitrary
+// row and pixel strides, so frames are copied into this simpler layout before the kernels in
+// YuvKernels run on them.
+//
+// Instances are expensive to allocate and are meant to be recycled through YuvFramePool.
+public final class YuvFrame {
+    public final int width;
+    public final int height;
+    public final byte[] y;
+    public final byte[] u;
+    public final byte[] v;
+
+    public YuvFrame(int width, int height) {
+        if (width <= 0 || height <= 0 || (width & 1) != 0 || (height & 1) != 0) {
+            throw new IllegalArgumentException("bad frame size: " + width + "x" + height);
+        }
+
+        this.width = width;
+        this.height = height;
+        y = new byte[width * height];
+        u = new byte[(width / 2) * (height / 2)];
+        v = new byte[(width / 2) * (height / 2)];
+    }
+
+    public int chromaWidth() {
+        return width / 2;
+    }
+
+    public int chromaHeight() {
+        return height / 2;
+    }
+}
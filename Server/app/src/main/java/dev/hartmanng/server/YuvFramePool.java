@@ -0,0 +1,48 @@
+// Copyright 2025 The Chromium Authors
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package dev.hartmanng.server;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+// Recycles YuvFrames so that steady-state frame processing doesn't allocate (and doesn't churn the
+// GC with multi-megabyte arrays 30 times a second).
+public class YuvFramePool {
+    private final int mMaxPooledPerSize;
+    private final Map<Long, ArrayDeque<YuvFrame>> mFrames = new HashMap<>();
+
+    public YuvFramePool(int maxPooledPerSize) {
+        mMaxPooledPerSize = maxPooledPerSize;
+    }
+
+    public synchronized YuvFrame acquire(int width, int height) {
+        ArrayDeque<YuvFrame> frames = mFrames.get(key(width, height));
+        if (frames == null || frames.isEmpty()) {
+            return new YuvFrame(width, height);
+        }
+        return frames.pop();
+    }
+
+    public synchronized void release(YuvFrame frame) {
+        long key = key(frame.width, frame.height);
+        ArrayDeque<YuvFrame> frames = mFrames.get(key);
+        if (frames == null) {
+            frames = new ArrayDeque<>();
+            mFrames.put(key, frames);
+        }
+        if (frames.size() < mMaxPooledPerSize) {
+            frames.push(frame);
+        }
+    }
+
+    public synchronized void clear() {
+        mFrames.clear();
+    }
+
+    private static long key(int width, int height) {
+        return ((long) width << 32) | height;
+    }
+}
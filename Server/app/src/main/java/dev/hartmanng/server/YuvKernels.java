@@ -0,0 +1,80 @@
+// Copyright 2025 The Chromium Authors
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package dev.hartmanng.server;
+
+// CPU kernels for transforming YuvFrames. These never allocate, and they work on a range of
+// output rows at a time so that FrameProcessor can split a frame into tiles and run them in
+// parallel.
+//
+// Deliberately free of Android dependencies so that they can be unit tested on the host.
+public final class YuvKernels {
+    private YuvKernels() {
+    }
+
+    // Applies `transform` to `src`, writing output rows [rowStart, rowEnd) of `dst`. `dst` must be
+    // exactly transform.outputWidth x transform.outputHeight, and rowStart must be even (so that
+    // each tile covers whole chroma rows).
+    public static void transform(YuvFrame src, FrameTransform transform, YuvFrame dst,
+                                 int rowStart, int rowEnd) {
+        transformPlane(src.y, src.width, dst.y, dst.width, transform.cropLeft, transform.cropTop,
+                transform.cropWidth, transform.cropHeight, transform.rotationDegrees, dst.width,
+                dst.height, rowStart, rowEnd);
+        transformPlane(src.u, src.chromaWidth(), dst.u, dst.chromaWidth(),
+                transform.cropLeft / 2, transform.cropTop / 2, transform.cropWidth / 2,
+                transform.cropHeight / 2, transform.rotationDegrees, dst.chromaWidth(),
+                dst.chromaHeight(), rowStart / 2, rowEnd / 2);
+        transformPlane(src.v, src.chromaWidth(), dst.v, dst.chromaWidth(),
+                transform.cropLeft / 2, transform.cropTop / 2, transform.cropWidth / 2,
+                transform.cropHeight / 2, transform.rotationDegrees, dst.chromaWidth(),
+                dst.chromaHeight(), rowStart / 2, rowEnd / 2);
+    }
+
+    // Crops, rotates (clockwise) and nearest-neighbour scales a single plane.
+    //
+    // For a given output row, the source index is an affine function of the column in the rotated
+    // crop, so each row only needs a base index and a step, and the inner loop is just a multiply,
+    // a divide and a copy.
+    static void transformPlane(byte[] src, int srcStride, byte[] dst, int dstStride,
+                               int cropLeft, int cropTop, int cropWidth, int cropHeight,
+                               int rotationDegrees, int outWidth, int outHeight,
+                               int rowStart, int rowEnd) {
+        boolean swapsAxes = rotationDegrees == 90 || rotationDegrees == 270;
+        // Size of the crop once it has been rotated.
+        int rotatedWidth = swapsAxes ? cropHeight : cropWidth;
+        int rotatedHeight = swapsAxes ? cropWidth : cropHeight;
+
+        rowEnd = Math.min(rowEnd, outHeight);
+        for (int dy = rowStart; dy < rowEnd; dy++) {
+            int v = dy * rotatedHeight / outHeight;
+
+            int base;
+            int step;
+            switch (rotationDegrees) {
+                case 90:
+                    base = (cropTop + cropHeight - 1) * srcStride + cropLeft + v;
+                    step = -srcStride;
+                    break;
+                case 180:
+                    base = (cropTop + cropHeight - 1 - v) * srcStride + cropLeft + cropWidth - 1;
+                    step = -1;
+                    break;
+                case 270:
+                    base = cropTop * srcStride + cropLeft + cropWidth - 1 - v;
+                    step = srcStride;
+                    break;
+                default:
+                    base = (cropTop + v) * srcStride + cropLeft;
+                    step = 1;
+                    break;
+            }
+
+            int dstIndex = dy * dstStride;
+            for (int dx = 0; dx < outWidth; dx++) {
+                int u = dx * rotatedWidth / outWidth;
+                dst[dstIndex + dx] = src[base + u * step];
+            }
+        }
+    }
+}
@@ -0,0 +1,354 @@
+// Copyright 2025 The Chromium Authors
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package dev.hartmanng.server;
+
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.media.ImageWriter;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+// Zero-shutter-lag support: keeps the last few full-resolution frames from the camera around so
+// that a client can ask for "the frame at timestamp T" after the fact, rather than having a new
+// capture taken (too late) once its request arrives.
+//
+// mImageReader is attached to the shared camera session alongside the other outputs. Every frame
+// it receives is kept in mFrames, tagged with its sensor timestamp (Image.getTimestamp()), and the
+// oldest frames are closed once there are more than mCapacity of them. mCapacity is bounded by
+// MAX_BYTES, so memory use stays bounded no matter what clients ask for.
+//
+// mImageReader is sized for the capacity it was created with. Growing past that needs a new
+// ZslRingBuffer; see setCapacity().
+public class ZslRingBuffer {
+    private static final String TAG = "Server.ZslRingBuffer";
+
+    public static final String KEY_WIDTH = "width";
+    public static final String KEY_HEIGHT = "height";
+    public static final String KEY_CAPACITY = "capacity";
+
+    // Upper bound on how much memory the held frames may use.
+    private static final long MAX_BYTES = 256L * 1024 * 1024;
+    // ImageReader needs a little headroom above the frames we hold so that the camera can keep
+    // producing into it, plus one for a frame that has been evicted while deliverFrame() is still
+    // copying it.
+    private static final int READER_HEADROOM = 3;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mMaxCapacity;
+    // The most frames mImageReader has room for, on top of READER_HEADROOM.
+    private final int mReaderCapacity;
+    private final HandlerThread mHandlerThread;
+    private final Handler mHandler;
+    private final ImageReader mImageReader;
+
+    // Oldest first. Guarded by itself, since frames are read out on binder threads.
+    private final ArrayDeque<Image> mFrames = new ArrayDeque<>();
+    private int mCapacity;
+    // Frames that deliverFrame() is copying out without holding the lock, and how many deliveries
+    // are copying each. A pinned frame that gets evicted is closed once the last of them is done.
+    // Guarded by mFrames.
+    private final Map<Image, Integer> mPinCounts = new IdentityHashMap<>();
+    // Guarded by mFrames.
+    private boolean mReleased = false;
+
+    // Closing an ImageWriter disconnects it from the client's Surface, which can discard a frame
+    // the client hasn't read yet. So the writer for the most recent delivery is kept open until
+    // the next one. Guarded by mDeliveryLock.
+    private ImageWriter mLastWriter = null;
+    // Deliveries take turns, since each one may have to take the client's Surface over from the
+    // last one's writer.
+    private final Object mDeliveryLock = new Object();
+
+    // Picks the largest YUV size the camera supports.
+    public static Size chooseSize(Size[] yuvSizes) {
+        Size best = null;
+        for (Size size : yuvSizes) {
+            if (best == null || (long) size.getWidth() * size.getHeight()
+                    > (long) best.getWidth() * best.getHeight()) {
+                best = size;
+            }
+        }
+        return best;
+    }
+
+    public ZslRingBuffer(int width, int height, int capacity) {
+        mWidth = width;
+        mHeight = height;
+
+        long frameBytes = (long) width * height * 3 / 2;
+        mMaxCapacity = (int) Math.max(1, MAX_BYTES / frameBytes);
+        mReaderCapacity = clampCapacity(capacity);
+        setCapacity(capacity);
+
+        mHandlerThread = new HandlerThread("ZslThread");
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper());
+
+        mImageReader = ImageReader.newInstance(width, height, ImageFormat.YUV_420_888,
+                mReaderCapacity + READER_HEADROOM);
+        mImageReader.setOnImageAvailableListener(this::onImageAvailable, mHandler);
+    }
+
+    // The Surface to attach to the camera session.
+    public Surface getInputSurface() {
+        return mImageReader.getSurface();
+    }
+
+    // Clamped to [1, the most frames that fit in MAX_BYTES]. Shrinking evicts frames right away.
+    // Returns false, leaving the capacity as it was, if mImageReader doesn't have room for that
+    // many frames, in which case the caller needs to replace this ZslRingBuffer with a bigger one.
+    public boolean setCapacity(int capacity) {
+        capacity = clampCapacity(capacity);
+        if (capacity > mReaderCapacity) {
+            return false;
+        }
+
+        synchronized (mFrames) {
+            mCapacity = capacity;
+            evictLocked();
+        }
+        return true;
+    }
+
+    public Bundle describe() {
+        Bundle bundle = new Bundle();
+        bundle.putInt(KEY_WIDTH, mWidth);
+        bundle.putInt(KEY_HEIGHT, mHeight);
+        synchronized (mFrames) {
+            bundle.putInt(KEY_CAPACITY, mCapacity);
+        }
+        return bundle;
+    }
+
+    // Copies the held frame closest to `timestampNs` into `surface`, returning that frame's
+    // timestamp, or -1 if there was nothing to deliver.
+    public long deliverFrame(long timestampNs, Surface surface) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            // ImageWriter needs an explicit format, otherwise it would use the Surface's.
+            Log.e(TAG, "zero shutter lag requires Android Q or above");
+            return -1;
+        }
+
+        synchronized (mDeliveryLock) {
+            return deliverFrameLocked(timestampNs, surface);
+        }
+    }
+
+    private long deliverFrameLocked(long timestampNs, Surface surface) {
+        // A Surface only takes one producer at a time, and clients typically capture into the same
+        // one (e.g. an ImageReader) over and over. A freshly unparcelled Surface can't be matched
+        // up with the one mLastWriter is connected to, so always let go of it first. By now the
+        // client has had the previous frame for as long as it wanted.
+        if (mLastWriter != null) {
+            mLastWriter.close();
+            mLastWriter = null;
+        }
+
+        ImageWriter writer;
+        try {
+            writer = ImageWriter.newInstance(surface, 1 /* maxImages */,
+                    ImageFormat.YUV_420_888);
+        } catch (RuntimeException e) {
+            // IllegalArgumentException if the Surface was released, or a plain RuntimeException
+            // if something else is still connected to it.
+            Log.e(TAG, "couldn't create ImageWriter: " + e);
+            return -1;
+        }
+
+        // Pin the frame rather than holding the lock while copying it, which would hold up
+        // onImageAvailable() (and so the camera) for the length of a full-resolution copy.
+        Image frame;
+        synchronized (mFrames) {
+            frame = mReleased ? null : findClosestLocked(timestampNs);
+            if (frame == null) {
+                Log.e(TAG, "no frames held");
+                writer.close();
+                return -1;
+            }
+            mPinCounts.merge(frame, 1, Integer::sum);
+        }
+
+        long deliveredTimestampNs;
+        try {
+            Image output = writer.dequeueInputImage();
+            copyImage(frame, output);
+            deliveredTimestampNs = frame.getTimestamp();
+            output.setTimestamp(deliveredTimestampNs);
+            writer.queueInputImage(output);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "client surface abandoned: " + e);
+            writer.close();
+            return -1;
+        } finally {
+            synchronized (mFrames) {
+                unpinLocked(frame);
+            }
+        }
+
+        synchronized (mFrames) {
+            if (mReleased) {
+                writer.close();
+            } else {
+                mLastWriter = writer;
+            }
+        }
+        return deliveredTimestampNs;
+    }
+
+    public void release() {
+        mHandler.post(() -> {
+            synchronized (mDeliveryLock) {
+                if (mLastWriter != null) {
+                    mLastWriter.close();
+                    mLastWriter = null;
+                }
+            }
+            synchronized (mFrames) {
+                mReleased = true;
+                while (!mFrames.isEmpty()) {
+                    closeUnlessPinnedLocked(mFrames.pollFirst());
+                }
+                if (!mPinCounts.isEmpty()) {
+                    // Closing the reader would close the frames still being copied out from under
+                    // deliverFrame(). The last unpinLocked() finishes up instead.
+                    return;
+                }
+            }
+            finishRelease();
+        });
+    }
+
+    private int clampCapacity(int capacity) {
+        return Math.max(1, Math.min(capacity, mMaxCapacity));
+    }
+
+    private void finishRelease() {
+        mImageReader.close();
+        mHandlerThread.quitSafely();
+    }
+
+    private void onImageAvailable(ImageReader reader) {
+        Image image;
+        try {
+            image = reader.acquireNextImage();
+        } catch (IllegalStateException e) {
+            // Only happens when several deliveries are still copying out frames that have since
+            // been evicted. Dropping this one is all we can do.
+            Log.e(TAG, "acquireNextImage(): " + e);
+            return;
+        }
+        if (image == null) {
+            return;
+        }
+
+        synchronized (mFrames) {
+            if (mReleased) {
+                image.close();
+                return;
+            }
+            mFrames.addLast(image);
+            evictLocked();
+        }
+    }
+
+    private void evictLocked() {
+        while (mFrames.size() > mCapacity) {
+            closeUnlessPinnedLocked(mFrames.pollFirst());
+        }
+    }
+
+    private void closeUnlessPinnedLocked(Image frame) {
+        if (!mPinCounts.containsKey(frame)) {
+            frame.close();
+        }
+    }
+
+    // Closes the frame if it was evicted while pinned, and finishes releasing if that was the last
+    // pinned frame.
+    private void unpinLocked(Image frame) {
+        int pinCount = mPinCounts.get(frame) - 1;
+        if (pinCount > 0) {
+            mPinCounts.put(frame, pinCount);
+            return;
+        }
+
+        mPinCounts.remove(frame);
+        if (mReleased || !mFrames.contains(frame)) {
+            frame.close();
+        }
+        if (mReleased && mPinCounts.isEmpty()) {
+            finishRelease();
+        }
+    }
+
+    private Image findClosestLocked(long timestampNs) {
+        Image closest = null;
+        long closestDistance = Long.MAX_VALUE;
+        for (Image frame : mFrames) {
+            long distance = Math.abs(frame.getTimestamp() - timestampNs);
+            if (distance < closestDistance) {
+                closest = frame;
+                closestDistance = distance;
+            }
+        }
+        return closest;
+    }
+
+    // Copies a YUV_420_888 image into another, dealing with each side's row and pixel strides.
+    // Only the region both images cover is copied.
+    private static void copyImage(Image src, Image dst) {
+        int width = Math.min(src.getWidth(), dst.getWidth());
+        int height = Math.min(src.getHeight(), dst.getHeight());
+        Image.Plane[] srcPlanes = src.getPlanes();
+        Image.Plane[] dstPlanes = dst.getPlanes();
+        for (int i = 0; i < 3; i++) {
+            int planeWidth = i == 0 ? width : width / 2;
+            int planeHeight = i == 0 ? height : height / 2;
+            copyPlane(srcPlanes[i], dstPlanes[i], planeWidth, planeHeight);
+        }
+    }
+
+    private static void copyPlane(Image.Plane src, Image.Plane dst, int width, int height) {
+        ByteBuffer srcBuffer = src.getBuffer();
+        ByteBuffer dstBuffer = dst.getBuffer();
+        int srcRowStride = src.getRowStride();
+        int dstRowStride = dst.getRowStride();
+        int srcPixelStride = src.getPixelStride();
+        int dstPixelStride = dst.getPixelStride();
+        // A view onto srcBuffer that can be narrowed to one row at a time for bulk copies.
+        ByteBuffer srcRow = srcBuffer.duplicate();
+
+        for (int row = 0; row < height; row++) {
+            int srcIndex = row * srcRowStride;
+            int dstIndex = row * dstRowStride;
+
+            if (srcPixelStride == 1 && dstPixelStride == 1) {
+                srcRow.clear();
+                srcRow.position(srcIndex);
+                srcRow.limit(srcIndex + width);
+                dstBuffer.position(dstIndex);
+                dstBuffer.put(srcRow);
+                continue;
+            }
+
+            for (int col = 0; col < width; col++) {
+                dstBuffer.put(dstIndex + col * dstPixelStride,
+                        srcBuffer.get(srcIndex + col * srcPixelStride));
+            }
+        }
+    }
+}
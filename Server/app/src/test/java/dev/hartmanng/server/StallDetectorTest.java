@@ -0,0 +1,203 @@
+// Copyright 2025 The Chromium Authors
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package dev.hartmanng.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class StallDetectorTest {
+    private static final long FPS_30_NS = 33_333_333L;
+    private static final long FPS_240_NS = 4_166_666L;
+    private static final long START_MS = 100_000;
+
+    private final StallDetector mDetector = new StallDetector();
+    private final StallDetector.OutputState mHealthy = new StallDetector.OutputState();
+    private final StallDetector.OutputState mFrozen = new StallDetector.OutputState();
+    private final List<StallDetector.OutputState> mOutputs = Arrays.asList(mHealthy, mFrozen);
+
+    // Feeds results every frame from `startMs` up to (but not including) `endMs`.
+    private void streamResults(long startMs, long endMs, long frameDurationNs) {
+        long frameMs = Math.max(1, frameDurationNs / 1_000_000);
+        for (long t = startMs; t < endMs; t += frameMs) {
+            mDetector.onResult(t, frameDurationNs);
+        }
+    }
+
+    private static void loseBuffers(StallDetector.OutputState output, int count) {
+        for (int i = 0; i < count; i++) {
+            output.onBufferLost();
+        }
+    }
+
+    @Test
+    public void thresholds_scaleWithFrameDuration() {
+        mDetector.reset(START_MS, FPS_30_NS);
+        long gap30 = mDetector.getGapThresholdMs();
+        int lost30 = mDetector.getLostBufferThreshold();
+
+        mDetector.reset(START_MS, FPS_240_NS);
+        long gap240 = mDetector.getGapThresholdMs();
+        int lost240 = mDetector.getLostBufferThreshold();
+
+        assertTrue(gap240 <= gap30);
+        assertTrue(lost240 > lost30);
+        // Well below the camera's ~1 s buffer wait.
+        assertTrue(gap30 < 500);
+    }
+
+    @Test
+    public void healthySession_quarantinesNothing() {
+        mDetector.reset(START_MS, FPS_30_NS);
+        streamResults(START_MS, START_MS + StallDetector.CHECK_INTERVAL_MS, FPS_30_NS);
+
+        assertFalse(mDetector.check(mOutputs, START_MS + StallDetector.CHECK_INTERVAL_MS));
+        assertFalse(mHealthy.isQuarantined());
+        assertFalse(mFrozen.isQuarantined());
+    }
+
+    @Test
+    public void frozenConsumer_oneLostBufferAfterLongGap_isQuarantined() {
+        // The camera waits ~1 s for the frozen consumer's buffer, then loses just that one.
+        mDetector.reset(START_MS, FPS_30_NS);
+        mDetector.onResult(START_MS + 1000, FPS_30_NS);
+        mFrozen.onBufferLost();
+
+        assertTrue(mDetector.check(mOutputs, START_MS + 1010));
+        assertTrue(mFrozen.isQuarantined());
+        assertFalse(mHealthy.isQuarantined());
+    }
+
+    @Test
+    public void briefHiccupAtHighFrameRate_isNotAStall() {
+        mDetector.reset(START_MS, FPS_240_NS);
+        streamResults(START_MS, START_MS + StallDetector.CHECK_INTERVAL_MS, FPS_240_NS);
+        // ~20 ms worth of frames.
+        loseBuffers(mFrozen, 5);
+
+        assertFalse(mDetector.check(mOutputs, START_MS + StallDetector.CHECK_INTERVAL_MS));
+        assertFalse(mFrozen.isQuarantined());
+    }
+
+    @Test
+    public void sustainedLossWithoutGap_isQuarantined() {
+        mDetector.reset(START_MS, FPS_30_NS);
+        streamResults(START_MS, START_MS + StallDetector.CHECK_INTERVAL_MS, FPS_30_NS);
+        // Most of the interval's frames.
+        loseBuffers(mFrozen, 7);
+
+        assertTrue(mDetector.check(mOutputs, START_MS + StallDetector.CHECK_INTERVAL_MS));
+        assertTrue(mFrozen.isQuarantined());
+    }
+
+    @Test
+    public void everyOutputStalled_quarantinesNoneAndCounts() {
+        mDetector.reset(START_MS, FPS_30_NS);
+        mDetector.onResult(START_MS + 1000, FPS_30_NS);
+        mHealthy.onBufferLost();
+        mFrozen.onBufferLost();
+
+        assertFalse(mDetector.check(mOutputs, START_MS + 1010));
+        assertFalse(mHealthy.isQuarantined());
+        assertFalse(mFrozen.isQuarantined());
+        assertEquals(1, mDetector.getConsecutiveAllFrozenChecks());
+    }
+
+    @Test
+    public void everyOutputFrozen_keepsCountingThroughTheBufferWait() {
+        mDetector.reset(START_MS, FPS_30_NS);
+        long nowMs = START_MS;
+        for (int second = 1; second <= 3; second++) {
+            // The camera waits on the buffers, with nothing coming out...
+            for (int i = 0; i < 3; i++) {
+                nowMs += StallDetector.CHECK_INTERVAL_MS;
+                mDetector.check(mOutputs, nowMs);
+            }
+            // ...then gives up on them.
+            nowMs += StallDetector.CHECK_INTERVAL_MS;
+            mDetector.onResult(nowMs - 10, FPS_30_NS);
+            mHealthy.onBufferLost();
+            mFrozen.onBufferLost();
+            mDetector.check(mOutputs, nowMs);
+            assertEquals(second, mDetector.getConsecutiveAllFrozenChecks());
+        }
+
+        // A healthy interval starts the count over.
+        streamResults(nowMs, nowMs + StallDetector.CHECK_INTERVAL_MS, FPS_30_NS);
+        mDetector.check(mOutputs, nowMs + StallDetector.CHECK_INTERVAL_MS);
+        assertEquals(0, mDetector.getConsecutiveAllFrozenChecks());
+    }
+
+    @Test
+    public void everyOutputFallingBehind_isNotCountedAsFrozen() {
+        // A live consumer reading a 240 fps stream at ~100 fps, with results still flowing.
+        mDetector.reset(START_MS, FPS_240_NS);
+        long nowMs = START_MS;
+        for (int i = 0; i < 5; i++) {
+            streamResults(nowMs, nowMs + StallDetector.CHECK_INTERVAL_MS, FPS_240_NS);
+            nowMs += StallDetector.CHECK_INTERVAL_MS;
+            loseBuffers(mHealthy, 35);
+            loseBuffers(mFrozen, 35);
+            assertFalse(mDetector.check(mOutputs, nowMs));
+            assertEquals(0, mDetector.getConsecutiveAllFrozenChecks());
+        }
+        assertFalse(mHealthy.isQuarantined());
+        assertFalse(mFrozen.isQuarantined());
+    }
+
+    @Test
+    public void quarantinedOutput_isReadmittedAfterBackoff() {
+        mDetector.reset(START_MS, FPS_30_NS);
+        loseBuffers(mFrozen, 10);
+        streamResults(START_MS, START_MS + 250, FPS_30_NS);
+        assertTrue(mDetector.check(mOutputs, START_MS + 250));
+
+        long readmitMs = START_MS + 250 + StallDetector.INITIAL_QUARANTINE_MS;
+        streamResults(START_MS + 250, readmitMs, FPS_30_NS);
+        assertFalse(mDetector.check(mOutputs, readmitMs - 1));
+        assertTrue(mFrozen.isQuarantined());
+
+        assertTrue(mDetector.check(mOutputs, readmitMs));
+        assertFalse(mFrozen.isQuarantined());
+    }
+
+    @Test
+    public void stallingAgainOnProbation_doublesBackoff() {
+        mDetector.reset(START_MS, FPS_30_NS);
+        long nowMs = START_MS;
+        streamResults(nowMs, nowMs + 250, FPS_30_NS);
+        nowMs += 250;
+        loseBuffers(mFrozen, 10);
+        mDetector.check(mOutputs, nowMs);
+
+        // Readmitted...
+        long readmitMs = nowMs + StallDetector.INITIAL_QUARANTINE_MS;
+        streamResults(nowMs, readmitMs, FPS_30_NS);
+        mDetector.check(mOutputs, readmitMs);
+        assertFalse(mFrozen.isQuarantined());
+
+        // ...and straight back to stalling.
+        nowMs = readmitMs + 250;
+        streamResults(readmitMs, nowMs, FPS_30_NS);
+        loseBuffers(mFrozen, 10);
+        mDetector.check(mOutputs, nowMs);
+        assertTrue(mFrozen.isQuarantined());
+
+        long stillQuarantinedMs = nowMs + StallDetector.INITIAL_QUARANTINE_MS;
+        streamResults(nowMs, stillQuarantinedMs, FPS_30_NS);
+        mDetector.check(mOutputs, stillQuarantinedMs);
+        assertTrue(mFrozen.isQuarantined());
+
+        long secondReadmitMs = nowMs + 2 * StallDetector.INITIAL_QUARANTINE_MS;
+        streamResults(stillQuarantinedMs, secondReadmitMs, FPS_30_NS);
+        mDetector.check(mOutputs, secondReadmitMs);
+        assertFalse(mFrozen.isQuarantined());
+    }
+}
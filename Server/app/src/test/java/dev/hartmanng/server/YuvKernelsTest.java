@@ -0,0 +1,144 @@
+// Copyright 2025 The Chromium Authors
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package dev.hartmanng.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class YuvKernelsTest {
+    // Fills every plane with (row * 16 + column) so that each pixel's origin is easy to read back.
+    private static YuvFrame makeGradientFrame(int width, int height) {
+        YuvFrame frame = new YuvFrame(width, height);
+        fillGradient(frame.y, width, height);
+        fillGradient(frame.u, width / 2, height / 2);
+        fillGradient(frame.v, width / 2, height / 2);
+        return frame;
+    }
+
+    private static void fillGradient(byte[] plane, int width, int height) {
+        for (int row = 0; row < height; row++) {
+            for (int col = 0; col < width; col++) {
+                plane[row * width + col] = (byte) (row * 16 + col);
+            }
+        }
+    }
+
+    private static YuvFrame transformWhole(YuvFrame src, FrameTransform transform) {
+        YuvFrame dst = new YuvFrame(transform.outputWidth, transform.outputHeight);
+        YuvKernels.transform(src, transform, dst, 0, dst.height);
+        return dst;
+    }
+
+    @Test
+    public void identity_copiesFrame() {
+        YuvFrame src = makeGradientFrame(4, 4);
+        YuvFrame dst = transformWhole(src, new FrameTransform(0, 0, 4, 4, 0, 4, 4));
+
+        assertArrayEquals(src.y, dst.y);
+        assertArrayEquals(src.u, dst.u);
+        assertArrayEquals(src.v, dst.v);
+    }
+
+    @Test
+    public void crop_takesSubRegion() {
+        YuvFrame src = makeGradientFrame(8, 8);
+        YuvFrame dst = transformWhole(src, new FrameTransform(2, 4, 4, 2, 0, 4, 2));
+
+        assertArrayEquals(new byte[]{0x42, 0x43, 0x44, 0x45, 0x52, 0x53, 0x54, 0x55}, dst.y);
+        assertArrayEquals(new byte[]{0x21, 0x22}, dst.u);
+    }
+
+    @Test
+    public void rotate90_rotatesClockwise() {
+        YuvFrame src = makeGradientFrame(4, 2);
+        YuvFrame dst = transformWhole(src, new FrameTransform(0, 0, 4, 2, 90, 2, 4));
+
+        // Source:      Rotated clockwise:
+        // 00 01 02 03  10 00
+        // 10 11 12 13  11 01
+        //              12 02
+        //              13 03
+        assertArrayEquals(new byte[]{0x10, 0x00, 0x11, 0x01, 0x12, 0x02, 0x13, 0x03}, dst.y);
+    }
+
+    @Test
+    public void rotate180_flipsBothAxes() {
+        YuvFrame src = makeGradientFrame(4, 2);
+        YuvFrame dst = transformWhole(src, new FrameTransform(0, 0, 4, 2, 180, 4, 2));
+
+        assertArrayEquals(new byte[]{0x13, 0x12, 0x11, 0x10, 0x03, 0x02, 0x01, 0x00}, dst.y);
+    }
+
+    @Test
+    public void rotate270_rotatesCounterClockwise() {
+        YuvFrame src = makeGradientFrame(4, 2);
+        YuvFrame dst = transformWhole(src, new FrameTransform(0, 0, 4, 2, 270, 2, 4));
+
+        assertArrayEquals(new byte[]{0x03, 0x13, 0x02, 0x12, 0x01, 0x11, 0x00, 0x10}, dst.y);
+    }
+
+    @Test
+    public void downscale_samplesNearestNeighbour() {
+        YuvFrame src = makeGradientFrame(8, 4);
+        YuvFrame dst = transformWhole(src, new FrameTransform(0, 0, 8, 4, 0, 4, 2));
+
+        assertArrayEquals(new byte[]{0x00, 0x02, 0x04, 0x06, 0x20, 0x22, 0x24, 0x26}, dst.y);
+        assertArrayEquals(new byte[]{0x00, 0x02}, dst.v);
+    }
+
+    @Test
+    public void tiles_matchWholeFrame() {
+        YuvFrame src = makeGradientFrame(16, 12);
+        FrameTransform transform = new FrameTransform(2, 2, 12, 8, 90, 6, 10);
+        YuvFrame whole = transformWhole(src, transform);
+
+        YuvFrame tiled = new YuvFrame(transform.outputWidth, transform.outputHeight);
+        for (int row = 0; row < tiled.height; row += 4) {
+            YuvKernels.transform(src, transform, tiled, row, row + 4);
+        }
+
+        assertArrayEquals(whole.y, tiled.y);
+        assertArrayEquals(whole.u, tiled.u);
+        assertArrayEquals(whole.v, tiled.v);
+    }
+
+    @Test
+    public void fromNormalizedCrop_resolvesToEvenPixels() {
+        FrameTransform transform =
+                FrameTransform.fromNormalizedCrop(1920, 1080, 0.25f, 0.25f, 0.75f, 0.75f, 0, 641,
+                        361);
+
+        assertEquals(480, transform.cropLeft);
+        assertEquals(270, transform.cropTop);
+        assertEquals(960, transform.cropWidth);
+        assertEquals(540, transform.cropHeight);
+        assertEquals(640, transform.outputWidth);
+        assertEquals(360, transform.outputHeight);
+    }
+
+    @Test
+    public void equalTransforms_shareHashCode() {
+        FrameTransform a = new FrameTransform(0, 0, 100, 100, 90, 50, 50);
+        FrameTransform b = new FrameTransform(0, 0, 100, 100, 90, 50, 50);
+        FrameTransform c = new FrameTransform(0, 0, 100, 100, 180, 50, 50);
+
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+        assertNotEquals(a, c);
+    }
+
+    @Test
+    public void pool_recyclesFrames() {
+        YuvFramePool pool = new YuvFramePool(1 /* maxPooledPerSize */);
+        YuvFrame frame = pool.acquire(4, 4);
+        pool.release(frame);
+
+        assertSame(frame, pool.acquire(4, 4));
+    }
+}
@@ -21,4 +21,8 @@ dependencyResolutionManagement {
 
 rootProject.name = "Server"
 include(":app")
- 
\ No newline at end of file
+ 
+
+// The AIDL interface shared between the Server and Client.
+include(":contract")
+project(":contract").projectDir = file("../Contract")